@@ -0,0 +1,185 @@
+/*
+ * Admission decides whether the server can take on more work.  It looks at the real load
+ * rather than a fixed count: signed in sessions, running battles, how long Database calls
+ * are taking and how full the heap is.  Each has a limit in Config.  Running battles only
+ * hold back new matches; new sign ins are held back by the others, and a player resuming a
+ * session is never held back.
+ *
+ * When a limit is passed new connections are not dropped.  They are sent
+ *
+ * 		busy,<seconds>,
+ *
+ * and closed.  The client contract is to wait at least that many seconds, plus a random
+ * amount up to the same again, before trying again, and to double the wait (up to a
+ * minute) each time it is turned away in a row.  The wait grows with how far over the
+ * limit the server is, so clients back off harder the worse the overload.  GameManager
+ * asks the same object how many battles it may start, so matches queue rather than
+ * pile on when the server is struggling.  The singleton pattern is used so all threads
+ * share one view of the load.
+ */
+
+package servers;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+
+public class Admission {
+
+	private static Admission 	admission;
+	private Lists 				lists;
+	private Runtime 			runtime;
+	private List<MemoryPoolMXBean> heapPools;
+	private long 				databaseMicros = 0;
+	private long 				databaseAt = System.nanoTime();
+
+	public static synchronized Admission getAdmission() {
+		if (admission == null) {
+			admission = new Admission();
+		}
+		return admission;
+	}
+
+	private Admission() {
+		lists = Lists.getLists();
+		runtime = Runtime.getRuntime();
+		heapPools = new ArrayList<MemoryPoolMXBean>();
+
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				heapPools.add(pool);
+			}
+		}
+	}
+
+
+	/*
+	 * retryAfter is used by the Listener for each new sign in.  A sign in does not
+	 * start a battle, so running battles do not count here; they are limited by
+	 * battleSlots.  A resume is never turned away.
+	 *
+	 * Input: the number of clients accepted but not yet picked up by GameManager
+	 * Output: 0 if the connection can be accepted, otherwise the number of seconds
+	 * 		   the client should wait before trying again
+	 */
+
+	public int retryAfter(int pending) {
+
+		Config config = Config.get();
+		double load = Math.max(sessionLoad(pending), serverLoad());
+
+		if (load < 1.0) {
+			return 0;
+		}
+		return (int) Math.min(config.maxRetryAfter, Math.ceil(config.retryAfter * load));
+	}
+
+
+	/*
+	 * battleSlots is used by GameManager before making matches.
+	 *
+	 * Input: none
+	 * Output: the number of battles which may be started now
+	 */
+
+	public int battleSlots() {
+
+		if (systemLoad() >= 1.0) {
+			return 0;
+		}
+		return Math.max(0, Config.get().maxBattles - lists.activeBattles.size());
+	}
+
+
+	/*
+	 * recordDatabase keeps a moving average of Database call times.  Each call
+	 * moves the average an eighth of the way towards its own time.  The average also
+	 * halves every databaseHalfLife seconds without a call, as a server which is
+	 * turning work away makes no calls to bring it down again.
+	 *
+	 * Input: the time the call took in nanoseconds
+	 * Output: none
+	 */
+
+	public synchronized void recordDatabase(long nanos) {
+		decay();
+		databaseMicros += (nanos / 1000L - databaseMicros) / 8;
+	}
+
+	private void decay() {
+
+		long now = System.nanoTime();
+		double halves = (now - databaseAt) / (Config.get().databaseHalfLife * 1000000000.0);
+
+		databaseMicros = (long) (databaseMicros * Math.pow(0.5, halves));
+		databaseAt = now;
+	}
+
+
+	// Utilities ------------------------------------------------------------------
+
+	/*
+	 * The load methods return how close each measure is to its limit, where 1.0
+	 * or more means the limit has been reached.
+	 */
+
+	private double sessionLoad(int pending) {
+
+		Config config = Config.get();
+		double sessions = (double) (lists.map.size() + pending) / config.maxSessions;
+		double queue = (double) pending / config.acceptQueue;
+
+		return Math.max(sessions, queue);
+	}
+
+	private double systemLoad() {
+
+		double battles = (double) lists.activeBattles.size() / Config.get().maxBattles;
+
+		return Math.max(battles, serverLoad());
+	}
+
+	private double serverLoad() {
+
+		Config config = Config.get();
+		double database = (double) getDatabaseMillis() / config.maxDatabaseLatency;
+		double heap = (double) heapPercent() / config.maxHeapPercent;
+
+		return Math.max(database, heap);
+	}
+
+	/*
+	 * heapPercent counts what was still in use after the last collection of each
+	 * heap pool, so garbage not yet collected does not count as load.  A pool which
+	 * does not report this is counted as it is now.
+	 */
+
+	private int heapPercent() {
+
+		long used = 0;
+
+		for (MemoryPoolMXBean pool : heapPools) {
+			MemoryUsage after = pool.getCollectionUsage();
+			used += (after != null) ? after.getUsed() : pool.getUsage().getUsed();
+		}
+		return (int) (used * 100L / runtime.maxMemory());
+	}
+
+
+	// Getter - Setter ----------------------------------------------------------------
+
+	public synchronized long getDatabaseMillis() {
+		decay();
+		return databaseMicros / 1000L;
+	}
+
+	public String toString() {
+		return "Sessions: " + lists.map.size() + "/" + Config.get().maxSessions
+				+ " Battles: " + lists.activeBattles.size() + "/" + Config.get().maxBattles
+				+ " Database: " + getDatabaseMillis() + "ms"
+				+ " Heap: " + heapPercent() + "%";
+	}
+}
@@ -1,8 +1,12 @@
 package servers;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
  
 public class Battle implements Runnable { 
 
-	private int 			turnCounter = 1;
+	private volatile int 	turnCounter = 1;
+	private volatile long 	deadline;
 	private boolean 		isStopped = false;
 	private Values.Result 	statusP1;
 	private Values.Result 	statusP2;
@@ -12,7 +16,12 @@ public class Battle implements Runnable {
 	private Thread 			current;
 	private String 			sessionID; 
 	private Lists 			lists; 
-	private int 			synchronizer = 0;
+	private EventLog 		log;
+	private Spectators.Feed feed;
+	private Tournament 		tournament;
+	private BattleStore 	store;
+	private int 			slot = -1;
+	private volatile CountDownLatch replies;
    
 	/*
 	 * The constructor for this class takes in the two client objects 
@@ -26,10 +35,21 @@ public class Battle implements Runnable {
 		this.statusP2 = Values.Result.none;
 		this.lists = Lists.getLists();
 		this.db = Database.getDatabase();
+		this.log = EventLog.getEventLog();
 		
 	} // end constructor
 	
 	
+	/*
+	 * A battle of a tournament reports its result back to the tournament when it ends.
+	 */
+	public Battle(Client c1, Client c2, Tournament t){
+		
+		this(c1, c2);
+		this.tournament = t;
+	}
+	
+	
 	/*
 	 * This method is the implementation of runnable interface.  This code
 	 * block will execute as a thread.  This thread mediates between two client
@@ -46,22 +66,34 @@ public class Battle implements Runnable {
 	 *  in time, times out, then the match will still be decided as a loss and it 
 	 *  will be recorded in the database.
 	 *  
+	 *  The turns are pipelined: the result of a turn goes out in the same request as
+	 *  the read of the next actions, and each player's service writes and then reads
+	 *  without waiting for the other.  The turn is resolved as soon as both actions
+	 *  are in, so there is one round of waiting per turn instead of two.
+	 *  
 	 */
 	
 	public void run(){
 
 		this.current = Thread.currentThread();
 		this.sessionID = this.current.getName();
+		this.feed = Spectators.getSpectators().open(sessionID);
+		this.store = BattleStore.getStore();
+		
+		if (store != null) {
+			slot = store.claim(player1.getRobot(), player2.getRobot());
+		}
 		
 		try{ // pre-Battle 
 			
-			if (Values.debug) {
-				System.out.println( "Making Match: " + current.getName() );
-				System.out.println( player1.getRobot().toString() + " " + 
-									player2.getRobot().toString());
+			if ( log.isEnabled( Values.Log.battle, Values.Level.info ) ) {
+				log.log( Values.Log.battle, Values.Level.info, "start", sessionID, 
+						player1.getUserID() + " " + player1.getRobot().toString() + " " + 
+						player2.getUserID() + " " + player2.getRobot().toString() );
 			}
 			
 			// Notify players match is starting
+			expect();
 			player1.getService().request(	Values.CA.write, sessionID + "," + 
 											player2.getUserID() + "," + 
 											player2.getFlatPartsList() + 
@@ -79,67 +111,61 @@ public class Battle implements Runnable {
       
  			
  			
+			expect();
 			player1.getService().request( Values.CA.read, null );
 			player2.getService().request( Values.CA.read, null );
        
 			hold(); // wait for responses
        
-			updatePlayers();
+			updatePlayers(true); // and the first actions
 
 		} catch ( Exception e ){
 			this.isStopped = true;
-			System.out.println("Failure to start battle action, Battle");
+			log.log( Values.Log.battle, Values.Level.error, "start failed", sessionID, 
+					e.toString() );
 		}
 
 		
 		while ( playing() && !isStopped ){ // main loop for the battle
 
-			if (Values.debug) { 
-				System.out.println( "Round: " + turnCounter );
-			}
-       
 			try{
 				
 			
-				// Get the players actions, wait for both to respond
-				player1.getService().request(Values.CA.update, null);
-				player2.getService().request(Values.CA.update, null);
-				hold();
-        
-
-				if ( Values.debug ) {
-					System.out.println( "ID: " + player1.getUserID() + "\tID: " + player2.getUserID() );
-					System.out.println( player1.getAction() + "\t\t" + player2.getAction() );
+				// The actions for this turn were read with the last update
+				if ( log.isEnabled( Values.Log.battle, Values.Level.debug ) ) {
+					log.log( Values.Log.battle, Values.Level.debug, "actions", sessionID, 
+							turnCounter + " " + player1.getAction() + " " + player2.getAction() );
 				}
          
  
 				if ( isForfeit() ) {
-					updatePlayers();
+					updatePlayers(false);
 					
 				}else{
 					
 					// Take turn, get result
-					player1.getRobot().attackedBy( player2.getRobot().attacks() );
-					player2.getRobot().attackedBy( player1.getRobot().attacks() );
+					ServerEvents.BattleTurn phase = 
+							ServerEvents.BattleTurn.start( sessionID, turnCounter, "resolve" );
+					resolveTurn();
  					turnCounter += 1;
  				          
-					if ( turnCounter > Values.maxTurns ) { // check for max turns
+					if ( turnCounter > Config.get().maxTurns ) { // check for max turns
 						tooManyTurns();
-						updatePlayers();
+						phase.commit();
+						updatePlayers(false);
 						break;
 					}
            
 					outcomeOfRound();
-					updatePlayers();
+					phase.commit();
+					updatePlayers(playing());
          				
-					if ( Values.debug ) {
-						System.out.println( player1.getRobot().getHealth() 
-									+ "\t\t" + player2.getRobot().getHealth() );
+					log.log( Values.Log.battle, Values.Level.debug, "health", sessionID, 
+							player1.getRobot().getHealth(), player2.getRobot().getHealth() );
 
-						System.out.println( player1.getRobot().getCoolDowns() 
-									+ " \t\t" + player2.getRobot().getCoolDowns() );
-	
-					}
+					log.log( Values.Log.battle, Values.Level.debug, "cooldowns", sessionID, 
+							player1.getRobot().getCool(), player1.getRobot().getCoolHeal(), 
+							player2.getRobot().getCool(), player2.getRobot().getCoolHeal() );
 				}
 			} catch ( Exception e ) {
 				this.isStopped = true;
@@ -149,45 +175,60 @@ public class Battle implements Runnable {
 
 
 
+		Spectators.getSpectators().close(sessionID);
+		if (slot >= 0) {
+			store.release(slot);
+		}
 		lists.removeFromActiveBattles(this);
 		recordMatchDB();
 		reportPlayerStats();
-		player1.getService().interrupt();
-		player2.getService().interrupt();
-		player1.moveFreely();
-		player2.moveFreely();
+		player1.getService().interrupt(tournament != null);
+		player2.getService().interrupt(tournament != null);
 		
-		if (Values.debug) {
-			System.out.println("Ending Battle: " + current.getName());
+		if (tournament != null) {
+			tournament.ended(this, winner());
 		}
+		
+		log.log(Values.Log.battle, Values.Level.info, "end", sessionID, 
+				statusP1.ordinal(), statusP2.ordinal());
 		cleanUp();
 
 	}// end run
 
 
 	/*
-	 * This method records the match results to the database.
+	 * This method records the match results to the database.  The players' points,
+	 * and so the Leaderboard, are brought up to date at the same time, and both
+	 * players are rated (see Ratings).
 	 * 
 	 */
 	private void recordMatchDB(){
 
+		Config config = Config.get();
+		
+		Ratings.getRatings().record(player1, player2, statusP1, statusP2);
+
 		switch (statusP1) {
 		
 		case win:
 			db.incrementWinDB(player1.getUserID());
-			db.awardScrap(player1.getUserID(), Values.winScrap);
+			db.awardScrap(player1.getUserID(), config.winScrap);
+			player1.addPoints(config.winPoints);
 			break;	
 		case draw:
 			db.incrementDrawDB(player1.getUserID());
-			db.awardScrap(player1.getUserID(), Values.drawScrap);
+			db.awardScrap(player1.getUserID(), config.drawScrap);
+			player1.addPoints(config.drawPoints);
 			break;
 		case forfeit:
 			db.incrementLossDB(player1.getUserID());
-			db.awardScrap(player1.getUserID(), Values.lossScrap);
+			db.awardScrap(player1.getUserID(), config.lossScrap);
+			player1.addPoints(config.lossPoints);
 			break;
 		case lose:
 			db.incrementLossDB(player1.getUserID());
-			db.awardScrap(player1.getUserID(), Values.lossScrap);
+			db.awardScrap(player1.getUserID(), config.lossScrap);
+			player1.addPoints(config.lossPoints);
 			break;
 
 		default:
@@ -198,20 +239,24 @@ public class Battle implements Runnable {
 		
 		case win:
 			db.incrementWinDB(player2.getUserID());
-			db.awardScrap(player2.getUserID(), Values.winScrap);
+			db.awardScrap(player2.getUserID(), config.winScrap);
+			player2.addPoints(config.winPoints);
 			break;
 			
 		case draw:
 			db.incrementDrawDB(player2.getUserID());
-			db.awardScrap(player2.getUserID(), Values.drawScrap);
+			db.awardScrap(player2.getUserID(), config.drawScrap);
+			player2.addPoints(config.drawPoints);
 			break;
 		case forfeit:
 			db.incrementLossDB(player2.getUserID());
-			db.awardScrap(player2.getUserID(), Values.lossScrap);
+			db.awardScrap(player2.getUserID(), config.lossScrap);
+			player2.addPoints(config.lossPoints);
 			break;
 		case lose:
 			db.incrementLossDB(player2.getUserID());
-			db.awardScrap(player2.getUserID(), Values.lossScrap);
+			db.awardScrap(player2.getUserID(), config.lossScrap);
+			player2.addPoints(config.lossPoints);
 			break;
 
 		default:
@@ -250,6 +295,25 @@ public class Battle implements Runnable {
 	} // end reportPlayerStats
 
 	
+	/*
+	 * This method takes one turn.  A battle with a slot in the BattleStore has
+	 * it resolved there with the other battles of the moment, otherwise the robots
+	 * resolve it themselves.
+	 * 
+	 * no input or output
+	 */
+	
+	private void resolveTurn() throws Exception {
+		if (slot >= 0) {
+			store.resolve(slot, player1.getRobot(), player1.getAction(), 
+					player2.getRobot(), player2.getAction());
+		} else {
+			player1.getRobot().attackedBy( player2.getRobot().attacks() );
+			player2.getRobot().attackedBy( player1.getRobot().attacks() );
+		}
+	} // end resolveTurn
+
+	
 	/*
 	 * This method checks to see if both players are still alive,
 	 * and thus still playing
@@ -266,12 +330,15 @@ public class Battle implements Runnable {
 	
 	/*
 	 * This method requests a write to both players.  The current stats are
-	 * supplied so they can be displayed on screen.
+	 * supplied so they can be displayed on screen.  While the battle goes on the
+	 * players are asked for their next actions in the same request.  A player
+	 * who has not answered by the deadline plays the timeoutAction.
 	 * 
-	 * no input or output
+	 * Input: boolean, true to read the next actions as well
+	 * Output: none
 	 */
  
-	private void updatePlayers() throws Exception {
+	private void updatePlayers(boolean next) throws Exception {
 		
 		String s1 = player1.getRobot().getHealth() + ","
 				+ player2.getRobot().getHealth() + "," + statusP1.name() + ","
@@ -285,10 +352,23 @@ public class Battle implements Runnable {
 				+ player2.getRobot().getCoolHeal() + "," + turnCounter + ","
 				+ player1.getAction() + ",";
 
-		player1.getService().request(Values.CA.write, s1);
-		player2.getService().request(Values.CA.write, s2);
+		ServerEvents.BattleTurn phase = 
+				ServerEvents.BattleTurn.start(sessionID, turnCounter, next ? "actions" : "update");
+		Values.CA perform = next ? Values.CA.exchange : Values.CA.write;
+
+		expect();
+		player1.getService().request(perform, s1);
+		player2.getService().request(perform, s2);
+		if (feed.isWatched()) {
+			feed.publish(sessionID + "," + turnCounter + "," 
+					+ player1.getUserID() + "," + player1.getRobot().getHealth() + "," 
+					+ player1.getAction() + "," 
+					+ player2.getUserID() + "," + player2.getRobot().getHealth() + "," 
+					+ player2.getAction() + "," + statusP1.name() + ",\n");
+		}
 
 		hold();
+		phase.commit();
 	} // end updatePlayers
   
 
@@ -322,34 +402,36 @@ public class Battle implements Runnable {
 	 */
 	
 	private boolean isForfeit() {
-		if ((player1.getAction().equals("forfeit"))
-				&& (player2.getAction().equals("forfeit"))) {
-			statusP1 = Values.Result.lose;
-			statusP2 = Values.Result.lose;
-			isStopped = true;
-			return true;
-		}
-		if ((player1.getAction().equals("forfeit"))
-				&& (!player2.getAction().equals("forfeit"))) {
-			statusP1 = Values.Result.lose;
-			statusP2 = Values.Result.win;
-			isStopped = true;
-			return true;
-		}
-
-		if ((!player1.getAction().equals("forfeit"))
-				&& (player2.getAction().equals("forfeit"))) {
-			statusP1 = Values.Result.win;
-			statusP2 = Values.Result.lose;
-			isStopped = true;
-			return true;
+		boolean f1 = player1.getAction() == Values.Action.forfeit;
+		boolean f2 = player2.getAction() == Values.Action.forfeit;
+		
+		if (!f1 && !f2) {
+			return false;
 		}
-
-		return false;
+		
+		statusP1 = f1 ? Values.Result.lose : Values.Result.win;
+		statusP2 = f2 ? Values.Result.lose : Values.Result.win;
+		isStopped = true;
+		return true;
 		
 	} // end isForfeit
  
 	
+	/*
+	 * This method returns the winner of the battle, or null if there is none.
+	 */
+	
+	private Client winner() {
+		if (statusP1 == Values.Result.win) {
+			return player1;
+		}
+		if (statusP2 == Values.Result.win) {
+			return player2;
+		}
+		return null;
+	}
+ 
+	
 	/*
 	 * This method will decide upon the match results if the turn counter reaches 
 	 * 20.  The match will still be decided if the turn maximum is reached
@@ -390,26 +472,47 @@ public class Battle implements Runnable {
 		current = null;
 		sessionID = null;
 		db = null;
+		log = null;
+		feed = null;
+		tournament = null;
+		store = null;
 		
 	} // end cleanUp
 
 	
 	/*
-	 * This method is used for synchronization of the 3 threads involved
-	 * in a battle.  This function will cause the battle thread to sleep for
-	 * 100 ms if it is waiting on one of the players.  Similar to a spin-lock
-	 * but without the run time overhead since sleep is invoked.  The synchronize
-	 * variable is reset after each use of hold().
+	 * These methods are used for synchronization of the 3 threads involved
+	 * in a battle.  expect is called before a request is made of both players,
+	 * each player's service counts down once it is done with the request, and
+	 * hold blocks the battle thread until both have.  hold waits no longer than
+	 * the deadline plus resumeGrace and replyGrace, time enough for a parked
+	 * player to come back; a player who still has not answered is given up on
+	 * and plays the timeoutAction (see Service.abandon).
 	 * 
 	 *   no input or output
 	 */
 	
+	private void expect() {
+		deadline = System.currentTimeMillis() + Config.get().waitTime * 1000L;
+		replies = new CountDownLatch(2);
+	}
+	
 	private void hold() throws Exception {
-		while (synchronizer < 2) {
-			Thread.sleep(100L);
+		long wait = deadline + Config.get().resumeGrace * 1000L + Config.get().replyGrace
+				- System.currentTimeMillis();
+		
+		if (!replies.await(Math.max(0L, wait), TimeUnit.MILLISECONDS)) {
+			abandon(player1);
+			abandon(player2);
+		}
+	}
+	
+	private void abandon(Client c) {
+		Service s = c.getService();
+		
+		if (s != null && s.abandon()) {
+			log.log(Values.Log.battle, Values.Level.error, "no reply", sessionID, c.getUserID());
 		}
-
-		synchronizer = 0;
 	}
 	
 	// Getter Setter -------------------------------------------------------
@@ -422,17 +525,35 @@ public class Battle implements Runnable {
 		return player2;
 	}
 
+	public String getSessionID() {
+		return sessionID;
+	}
+
+	public int getTurn() {
+		return turnCounter;
+	}
+
+	public long getDeadline() {
+		return deadline;
+	}
+
 	public String toString() {
 		return player1.getUserID() + "," + player1.getAction() + ","
 				+ player2.getUserID() + "," + player2.getAction();
 	}
 
 	public void synchronize() {
-		synchronizer += 1;
+		replies.countDown();
 	}
 
 	public void stop() {
+		CountDownLatch r = replies;
+		
 		isStopped = true;
+		if (r != null) {
+			r.countDown();
+			r.countDown();
+		}
 	}
 }
 
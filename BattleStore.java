@@ -0,0 +1,305 @@
+/*
+ * BattleStore keeps the fighting state of every robot in active battles in plain int arrays,
+ * one entry per robot, instead of in one Robot object per player.  A battle takes a slot
+ * when it starts; its robots are entries 2*slot and 2*slot+1.  Each turn the battle thread
+ * writes the two actions into the store and waits, and one resolver thread works through
+ * the arrays resolving every battle whose actions have come in, in a single pass.  The
+ * arrays are read in order, so a few thousand battles are a few linear scans rather than
+ * a few thousand object graphs.
+ *
+ * There is no lock on a turn.  Each slot has a state, set once its actions are written
+ * and again once it is resolved, and the battle thread waiting on a slot is woken on its
+ * own, so a pass wakes only the battles it resolved.
+ *
+ * The rules are those of Robot, action for action and using its action table: the damage a
+ * robot deals, the defence and heal rolls and the cool downs.  After the pass the battle
+ * copies the new health and cool downs back into its Robots, so everything else in Battle
+ * reads them as before.
+ *
+ * The store is optional.  Its size is the battleStore setting (start up only); 0, the
+ * default, leaves it off and every battle resolves its own turns.  A battle which starts
+ * when every slot is taken also resolves its own turns.  The singleton pattern is used so
+ * there is one resolver thread.
+ */
+
+package servers;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+public class BattleStore implements Runnable {
+
+	private static BattleStore 	store;
+	private final int[] 		health;
+	private final int[] 		maxHealth;
+	private final int[] 		attack;
+	private final int[] 		defend;
+	private final int[] 		cool;
+	private final int[] 		coolh;
+	private final int[] 		action;
+	private final int[] 		damage;
+	private final AtomicIntegerArray state;
+	private final Thread[] 		waiters;
+	private final AtomicInteger pendingCount = new AtomicInteger(0);
+	private final int[] 		free;
+	private int 				freeCount;
+	private final Random 		random = new Random();
+	private Thread 				resolver;
+	private volatile long 		passes = 0;
+	private volatile long 		resolved = 0;
+
+	private static final int 	none = -1;
+
+	// Slot states
+	private static final int 	idle = 0;
+	private static final int 	handedIn = 1;
+	private static final int 	done = 2;
+
+	/*
+	 * getStore returns the store, or null if it is turned off.
+	 */
+
+	public static synchronized BattleStore getStore() {
+		if (store == null && Config.get().battleStore > 0) {
+			store = new BattleStore(Config.get().battleStore);
+
+			store.resolver = new Thread(store, "BattleStore");
+			store.resolver.setDaemon(true);
+			store.resolver.start();
+		}
+		return store;
+	}
+
+	private BattleStore(int slots) {
+		health = new int[2 * slots];
+		maxHealth = new int[2 * slots];
+		attack = new int[2 * slots];
+		defend = new int[2 * slots];
+		cool = new int[2 * slots];
+		coolh = new int[2 * slots];
+		action = new int[2 * slots];
+		damage = new int[2 * slots];
+		state = new AtomicIntegerArray(slots);
+		waiters = new Thread[slots];
+		free = new int[slots];
+
+		for (int i = 0; i < slots; i++) {
+			free[i] = slots - 1 - i;
+		}
+		freeCount = slots;
+		random.setSeed(System.nanoTime());
+	}
+
+
+	/*
+	 * claim gives a battle a slot and copies its two robots into it.  release gives
+	 * the slot back when the battle ends.
+	 *
+	 * Input: the two robots / the slot
+	 * Output: claim returns the slot, or -1 if the store is full
+	 */
+
+	public synchronized int claim(Robot r1, Robot r2) {
+
+		if (freeCount == 0) {
+			return -1;
+		}
+
+		int slot = free[--freeCount];
+		load(2 * slot, r1);
+		load(2 * slot + 1, r2);
+		state.set(slot, idle);
+		return slot;
+	}
+
+	public synchronized void release(int slot) {
+		state.set(slot, idle);
+		waiters[slot] = null;
+		free[freeCount++] = slot;
+	}
+
+
+	/*
+	 * resolve hands one turn of a battle to the resolver and waits for the pass which
+	 * takes it.  The robots are brought up to date before it returns.  The actions are
+	 * written before the slot's state is set, and the state is set by the resolver
+	 * only after the slot's robots are, so each side sees the other's writes.
+	 *
+	 * Input: the slot, the two robots and their actions
+	 * Output: none
+	 */
+
+	public void resolve(int slot, Robot r1, Values.Action a1, Robot r2,
+			Values.Action a2) throws InterruptedException {
+
+		action[2 * slot] = (a1 == null) ? none : a1.ordinal();
+		action[2 * slot + 1] = (a2 == null) ? none : a2.ordinal();
+		waiters[slot] = Thread.currentThread();
+		state.set(slot, handedIn);
+		pendingCount.incrementAndGet();
+		LockSupport.unpark(resolver);
+
+		while (state.get(slot) != done) {
+			LockSupport.park(this);
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+		state.set(slot, idle);
+
+		save(2 * slot, r1);
+		save(2 * slot + 1, r2);
+	}
+
+
+	/*
+	 * run is the resolver thread.  It sleeps until a turn is handed in, then resolves
+	 * everything handed in so far.
+	 */
+
+	public void run() {
+
+		while (!Thread.currentThread().isInterrupted()) {
+			if (pendingCount.get() == 0) {
+				LockSupport.park(this);
+			} else {
+				pass();
+			}
+		}
+	}
+
+
+	/*
+	 * pass resolves every battle handed in.  Each robot's attack is worked out first
+	 * and then taken by the other robot, as Battle does with attacks and attackedBy.
+	 * Each battle's thread is woken as soon as its turn is done.
+	 */
+
+	private void pass() {
+
+		int n = 0;
+
+		for (int slot = 0; slot < waiters.length; slot++) {
+			if (state.get(slot) != handedIn) {
+				continue;
+			}
+
+			int p1 = 2 * slot;
+			int p2 = p1 + 1;
+
+			damage[p2] = attacks(p2);
+			attackedBy(p1, damage[p2]);
+			damage[p1] = attacks(p1);
+			attackedBy(p2, damage[p1]);
+
+			state.set(slot, done);
+			LockSupport.unpark(waiters[slot]);
+			n++;
+		}
+		pendingCount.addAndGet(-n);
+		resolved += n;
+		passes++;
+	}
+
+
+	// Rules ------------------------------------------------------------------------
+
+	/*
+	 * The following methods are the rules in Robot, for the robot at index i.
+	 */
+
+	private int attacks(int i) {
+
+		int kind = (action[i] == none) ? Robot.none : Robot.offence[action[i]];
+
+		if (kind == Robot.charged) {
+			tick(i, false, true);
+			if (cool[i] < 1) {
+				cool[i] = 2;
+				return attack[i] + rollDice();
+			}
+			cool[i] -= 1;
+			return attack[i];
+		}
+		if (kind == Robot.plain) {
+			tick(i, true, true);
+			return attack[i];
+		}
+		return 0;
+	}
+
+	private void attackedBy(int i, int aV) {
+
+		int kind = (action[i] == none) ? Robot.none : Robot.defence[action[i]];
+
+		if (kind == Robot.mend) {
+			int healValue = defend[i] + rollDice();
+
+			tick(i, true, false);
+			if (coolh[i] < 1) {
+				coolh[i] = 2;
+				if (healValue + health[i] < maxHealth[i]) {
+					health[i] += healValue - aV;
+				} else {
+					health[i] = maxHealth[i] - aV;
+				}
+				return;
+			}
+			defends(i, aV);
+		} else if (kind == Robot.block) {
+			defends(i, aV);
+		} else {
+			health[i] -= aV;
+		}
+	}
+
+	private void defends(int i, int aV) {
+
+		tick(i, true, true);
+		int d = aV - defend[i] - rollDice();
+
+		if (d > 0) {
+			health[i] -= d;
+		}
+	}
+
+	private void tick(int i, boolean charge, boolean heal) {
+		if (charge && cool[i] > 0) {
+			cool[i] -= 1;
+		}
+		if (heal && coolh[i] > 0) {
+			coolh[i] -= 1;
+		}
+	}
+
+	private int rollDice() {
+		return 1 + random.nextInt(6);
+	}
+
+
+	// Utilities ------------------------------------------------------------------
+
+	private void load(int i, Robot r) {
+		health[i] = r.getHealth();
+		maxHealth[i] = r.getMaxHealth();
+		attack[i] = r.getAttackStat();
+		defend[i] = r.getDefendStat();
+		cool[i] = r.getCool();
+		coolh[i] = r.getCoolHeal();
+		action[i] = none;
+	}
+
+	private void save(int i, Robot r) {
+		r.setState(health[i], cool[i], coolh[i]);
+	}
+
+
+	// Getter - Setter ----------------------------------------------------------------
+
+	public synchronized String toString() {
+		return "Slots used: " + (waiters.length - freeCount) + "/" + waiters.length
+				+ " Turns: " + resolved + " Passes: " + passes;
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * BufferPool hands out the direct ByteBuffers used for socket I/O.  One block of direct
+ * memory is allocated when the server starts and cut into slabCount slabs of slabSize
+ * bytes (see Config).  A connection leases a slab when it opens and returns it when it
+ * closes, so sending a message allocates nothing on the heap.
+ *
+ * Slabs are identified by their index.  If the pool runs out, lease returns -1 and the
+ * caller allocates its own buffer; these are counted as overflow so the pool can be sized
+ * from the poll command.  In debug mode each lease records where it was made and who owns
+ * it.  If an owner is garbage collected without releasing its slab, checkLeaks reports the
+ * lease site and takes the slab back.  The singleton pattern is used so there is one pool.
+ */
+
+package servers;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+
+public class BufferPool {
+
+	private static BufferPool 		bufferPool;
+	private ByteBuffer[] 			slabs;
+	private int[] 					free;
+	private int 					top;
+	private boolean[] 				leased;
+	private WeakReference<?>[] 		owners;
+	private Throwable[] 			sites;
+	private long 					overflow = 0;
+	private long 					leaks = 0;
+
+	public static synchronized BufferPool getBufferPool() {
+		if (bufferPool == null) {
+			bufferPool = new BufferPool(Config.get().slabCount, Config.get().slabSize);
+		}
+		return bufferPool;
+	}
+
+	private BufferPool(int count, int size) {
+
+		ByteBuffer arena = ByteBuffer.allocateDirect(count * size);
+
+		slabs = new ByteBuffer[count];
+		free = new int[count];
+		leased = new boolean[count];
+		owners = new WeakReference<?>[count];
+		sites = new Throwable[count];
+
+		for (int i = 0; i < count; i++) {
+			arena.limit((i + 1) * size);
+			arena.position(i * size);
+			slabs[i] = arena.slice();
+			free[i] = count - 1 - i;
+		}
+		top = count;
+	}
+
+
+	/*
+	 * lease takes a slab off the free stack.
+	 *
+	 * Input: the object the slab is leased to, used for leak detection
+	 * Output: the index of the slab, or -1 if the pool is empty
+	 */
+
+	public synchronized int lease(Object owner) {
+
+		if (top == 0) {
+			overflow++;
+			return -1;
+		}
+
+		int i = free[--top];
+		leased[i] = true;
+		slabs[i].clear();
+
+		if (Values.debug) {
+			owners[i] = new WeakReference<Object>(owner);
+			sites[i] = new Throwable("Slab " + i + " leased here");
+		}
+		return i;
+	}
+
+
+	/*
+	 * release puts a slab back on the free stack.  Releasing a slab twice, or
+	 * releasing -1, does nothing.
+	 *
+	 * Input: the index of the slab
+	 * Output: none
+	 */
+
+	public synchronized void release(int i) {
+
+		if (i < 0 || !leased[i]) {
+			return;
+		}
+
+		leased[i] = false;
+		owners[i] = null;
+		sites[i] = null;
+		free[top++] = i;
+	}
+
+
+	/*
+	 * checkLeaks looks for slabs whose owner has been garbage collected without
+	 * releasing them.  Each one is logged with the place it was leased and then
+	 * returned to the pool.  Only leases made in debug mode can be checked.
+	 *
+	 * Input: none
+	 * Output: the number of leaks found on this pass
+	 */
+
+	public synchronized int checkLeaks() {
+
+		int found = 0;
+
+		for (int i = 0; i < slabs.length; i++) {
+			if (leased[i] && owners[i] != null && owners[i].get() == null) {
+				StackTraceElement[] trace = sites[i].getStackTrace();
+				String where = trace.length > 1 ? trace[1].toString() : "unknown";
+
+				EventLog.getEventLog().log(Values.Log.server, Values.Level.error,
+						"buffer leak", "slab " + i, where);
+				found++;
+				release(i);
+			}
+		}
+
+		leaks += found;
+		return found;
+	}
+
+
+	// Getter - Setter ----------------------------------------------------------------
+
+	public ByteBuffer slab(int i) {
+		return slabs[i];
+	}
+
+	public synchronized int inUse() {
+		return slabs.length - top;
+	}
+
+	public int capacity() {
+		return slabs.length;
+	}
+
+	public synchronized long getOverflow() {
+		return overflow;
+	}
+
+	public synchronized long getLeaks() {
+		return leaks;
+	}
+}
@@ -8,40 +8,55 @@
 
 package servers;
 
-import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
-import java.net.Socket;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Client implements Comparable<Client> {
 	
 	private int 			points;
+	private int 			rating;
+	private int 			games;
 	private int 			priority = 0;
-	private Comms 			comms;
+	private volatile Comms 	comms;
 	private Service 		service;
 	private String 			userID = null;
 	private String 			password = null;
-	private String 			action = null;
+	private Values.Action 	action = null;
 	private int 			numPartTypes;
 	private String[] 		robotPartsList;
+	private long[] 			owned;
 	private Robot 			myRobot;
 	private Lists 			lists;
 	private Database 		db;
 	private DBObject 		myDBInfo;
 	private Values.States 	currentService;
-	private boolean 		moveable = true;
+	private volatile boolean moveable = true;
+	private volatile Lists.Entry entry;
+	private volatile int 	scrap;
+	private final AtomicBoolean ended = new AtomicBoolean(false);
+	private String 			token = null;
+	private volatile boolean parked = false;
+	private long 			parkedAt;
+	private volatile Tournament tournament;
    
 	// Constructor
-	public Client(Socket socket) throws Exception {
-		comms = new Comms(socket);
+	public Client(Comms cs, String[] loginInfo) throws Exception {
+		ServerEvents.Login login = ServerEvents.Login.start();
+		
+		comms = cs;
 		db = Database.getDatabase();
 		lists = Lists.getLists();
-		getLoginInfo();
+		getLoginInfo(loginInfo);
 
 		try {
 			if (lists.isInMap(userID))
 				throw new Exception();
 			myDBInfo = db.authenticate(userID, password);
 		} catch (Exception e) {
+			login.end(userID, "fail");
 			comms.write("fail,");
 			endSession();
 			throw new Exception();
@@ -51,17 +66,62 @@ public class Client implements Comparable<Client> {
 		robotPartsList = new String[this.numPartTypes];
 
 		points = calculatePoints();
-		comms.write("logged in," + getAvailiblePartsList());
+		rating = Ratings.ratingOf(myDBInfo);
+		games = Ratings.gamesOf(myDBInfo);
+		owned = ownedParts(myDBInfo);
+		scrap = scrapOf(myDBInfo);
+		Leaderboard.getLeaderboard().update(userID, points);
+		token = Sessions.getSessions().issue(this);
+		comms.write("logged in," + token + "," + getAvailiblePartsList());
 
 		currentService = Values.States.idle;
 
 		service = new Service(this, comms);
 		lists.addToMap(this);
 
-		if (Values.debug) {
-			System.out.println("Client Accepted: ID: " + getUserID()
-					+ "\tSigned in: true");
-		}
+		EventLog.getEventLog().log(Values.Log.session, Values.Level.info,
+				"login", userID, points, numPartTypes);
+		login.end(userID, "ok");
+	}
+
+	private Client() {
+	}
+
+	
+	/*
+	 * migrated makes the session for a player handed over by another node of a cluster
+	 * (see Cluster).  The player has already signed in and picked a robot there, so there
+	 * is no password and no robot selection.  The session starts parked, waiting in the
+	 * quick match queue, until the player connects with the new resume token.
+	 * 
+	 * Input: the user name, points, robot attack and defend, and the robot parts
+	 * Output: the parked client, with its Service not yet started
+	 */
+	
+	public static Client migrated(String user, int points, int[] stats, String[] parts) {
+		Client c = new Client();
+		
+		c.db = Database.getDatabase();
+		c.lists = Lists.getLists();
+		c.userID = user;
+		c.points = points;
+		c.numPartTypes = parts.length;
+		c.robotPartsList = parts;
+		c.myRobot = Robot.obtain(stats);
+		c.myDBInfo = c.db.getUserInfo(user);
+		c.rating = Ratings.ratingOf(c.myDBInfo);
+		c.games = Ratings.gamesOf(c.myDBInfo);
+		c.owned = c.ownedParts(c.myDBInfo);
+		c.scrap = scrapOf(c.myDBInfo);
+		c.currentService = Values.States.waitingQuick;
+		c.token = Sessions.getSessions().issue(c);
+		c.service = new Service(c, null);
+		c.parked = true;
+		c.parkedAt = System.currentTimeMillis();
+		
+		EventLog.getEventLog().log(Values.Log.session, Values.Level.info,
+				"handed over", user, points, parts.length);
+		return c;
 	}
 
 	
@@ -78,7 +138,8 @@ public class Client implements Comparable<Client> {
 
 	
 	/*
-	 * This method is used by compareTo to compute the rank of a client.
+	 * This method is used by compareTo to compute the rank of a client.  Players are
+	 * compared by rating (see Ratings) rather than lifetime points.
 	 */
 	public int metric(Client c) {
 		int alpha = 90;
@@ -88,9 +149,9 @@ public class Client implements Comparable<Client> {
 		if (currentService.equals(Values.States.waiting)) {
 			temp = alpha
 					* (myRobot.getAttackStat() - c.getRobot().getAttackStat());
-			temp += beta * (points - c.getPoints());
+			temp += beta * (rating - c.getRating());
 		} else {
-			temp = points - c.getPoints();
+			temp = rating - c.getRating();
 		}
 
 		return temp + priority;
@@ -105,8 +166,9 @@ public class Client implements Comparable<Client> {
 
 	/*
 	 * The following 3 methods are used to keep clients in the appropriate queue
-	 * or allow them to move.  Ex.  if a clients requests a match and is about to 
-	 * be assigned, keep them from leaving.  
+	 * or allow them to move.  Ex.  a player held by a tournament between battles is
+	 * kept from leaving.  The quick match queue does not use them; a player there is
+	 * kept by their entry (see Lists.Entry).
 	 */
 	
 	public boolean isMoveable() {
@@ -120,99 +182,261 @@ public class Client implements Comparable<Client> {
 	public void moveFreely() {
 		moveable = true;
 	}
+	
+	public Lists.Entry getEntry() {
+		return entry;
+	}
+	
+	public void setEntry(Lists.Entry e) {
+		entry = e;
+	}
 
 	
 	/*
-	 * This method is used to take a string array and assign the parts to
-	 * the correct place and validate.  The string array contains info
+	 * This method is used to take a message and assign the parts to
+	 * the correct place and validate.  The message contains info
 	 * about the players robot that they have selected from their given parts 
 	 * list.  If the format is not correct, if there is no content, or if the
-	 * clients signs out, an exception is thrown 
+	 * clients signs out, an exception is thrown.  Every part must be one the
+	 * player owns; a part they do not own is reported to the Referee and is
+	 * also thrown out.
 	 */
 
-	public void unpack(String[] input) throws Exception {
-		int[] ac = new int[2];
+	public void unpack(Message input) throws Exception {
+		int[] ac;
 
-		if ((input == null) || (input.length < 6)
-				|| (input[1].equals("signout"))) {
+		if ((input == null) || (input.fields() < numPartTypes + 1)
+				|| (input.command(1) == Values.Command.signout)) {
 			throw new Exception();
 		}
 		for (int i = 0; i < numPartTypes; i++) {
-			robotPartsList[i] = input[(i + 1)].trim();
+			if (!ownsPart(input.intField(i + 1, -1))) {
+				Referee.getReferee().report(userID, Values.Anomaly.unowned);
+				throw new Exception();
+			}
+		}
+		for (int i = 0; i < numPartTypes; i++) {
+			robotPartsList[i] = input.string(i + 1);
 		}
 
 		ac = db.getAttackDefend(robotPartsList);
-		myRobot = new Robot(ac);
+		if (myRobot == null) {
+			myRobot = Robot.obtain(ac);
+		} else {
+			myRobot.reset(ac);
+		}
 	}
 
 	
 	/*
-	 * This following two methods are used to validate and update
-	 * the next move to be made by the client
+	 * This following method is used to validate and update the next move 
+	 * to be made by the client.  Anything which is not one of Values.Action 
+	 * is taken as a forfeit.  Only a failure to read throws.
 	 * 
-	 * updateAction has no input or output
+	 * The move must come by the turn's deadline, set by the Battle.  If it does
+	 * not the timeoutAction (see Config) is played for the player and the turn
+	 * goes on; the connection is kept.  A move may carry its turn number after the
+	 * action.  One for an earlier turn, sent after that turn's deadline, is passed
+	 * over.
+	 * 
+	 * Anything odd is reported to the Referee and the turn goes on: an action
+	 * which could not be read, one the robot's cool downs do not allow (the robot
+	 * falls back to its plain move), and one which came back in less than
+	 * minActionMillis, too fast for a person.
+	 * 
+	 * Input: the turn and its deadline, in milliseconds since the epoch
+	 * Output: none
 	 */
 	
-	public void updateAction() {
+	public void updateAction(int turn, long deadline) throws IOException {
+		
+		long asked = System.nanoTime();
+		Message move = null;
+		Comms using = comms;
 		
-		String[] ss = null;
-		action = null;
-
 		try {
-			ss = comms.read();
-			action = ss[1].trim();
-			if (!isAcceptableAction(action)) {
-				action = Values.Action.forfeit.name();
+			while (move == null) {
+				long remaining = deadline - System.currentTimeMillis();
+				
+				if (remaining <= 0) {
+					throw new SocketTimeoutException();
+				}
+				using.setReadTimeOut(remaining);
+				move = using.receive();
+				
+				// A heartbeat sent just before the battle is not a move
+				if (move.command(1) == Values.Command.ping) {
+					using.heartbeat();
+					move = null;
+					continue;
+				}
+				int sentFor = move.intField(2, turn);
+				if (sentFor != turn) {
+					move = null;
+				}
 			}
-		} catch (Exception e) {
-			this.action = Values.Action.forfeit.name();
+		} catch (SocketTimeoutException e) {
+			timedOut();
+			return;
+		} finally {
+			using.setReadTimeOut(Config.get().defaultTimeOut * 1000L);
+		}
+		
+		Values.Action act = move.action(1);
+
+		if (act == null) {
+			Referee.getReferee().report(userID, Values.Anomaly.malformed);
+			act = Values.Action.forfeit;
+		} else if (!myRobot.allows(act)) {
+			Referee.getReferee().report(userID, Values.Anomaly.cooldown);
+		}
+		if (System.nanoTime() - asked < Config.get().minActionMillis * 1000000L) {
+			Referee.getReferee().report(userID, Values.Anomaly.timing);
 		}
+		action = act;
 		myRobot.setAction(action);
 	}
-
 	
+	public void forfeit() {
+		play(Values.Action.forfeit);
+	}
+	
+	public void timedOut() {
+		play(Config.get().timeoutAction);
+		EventLog.getEventLog().log(Values.Log.battle, Values.Level.info,
+				"turn timed out", userID, action.name());
+	}
+	
+	private void play(Values.Action a) {
+		Robot r = myRobot;
+		
+		action = a;
+		if (r != null) {
+			r.setAction(a);
+		}
+	}
+
+
 	/*
-	 * Input: string
+	 * The following methods are used to resume a session after the connection drops.
+	 * park is called by the service thread when a read or write fails.  The client keeps
+	 * its place in any battle for resumeGrace seconds, during which rebind can
+	 * attach a new connection to it.  If the failed connection has already been replaced
+	 * there is nothing to do.  Sessions are not parked while the server is draining.
 	 * 
-	 * Output: boolean, true if the string corresponds to a valid move,
-	 * false otherwise
+	 * Input: park takes the Comms which failed, rebind the Comms of the new connection
+	 * Output: boolean, false if the session could not be parked or rebound
 	 */
-	private boolean isAcceptableAction(String s) {
+	
+	public synchronized boolean park(Comms failed) {
 		
-		Values.Action act = Values.Action.valueOf(s);
-
-		switch (act) {
-			case attack: 	return true;
-			case heal:		return true;
-			case charge:	return true;
-			case forfeit:	return true;
-			case defend:	return true;
-			default:		return false;
+		if (comms != failed) {
+			return true;
+		}
+		if (token == null || lists.isDraining()) {
+			return false;
 		}
+		
+		parked = true;
+		parkedAt = System.currentTimeMillis();
+		EventLog.getEventLog().log(Values.Log.session, Values.Level.info,
+				"parked", userID, null);
+		return true;
 	}
-
-
+	
+	public synchronized boolean rebind(Comms cs) {
+		
+		if (service == null) {
+			return false;
+		}
+		
+		Comms old = comms;
+		comms = cs;
+		parked = false;
+		service.rebind(cs);
+		
+		try {
+			if (old != null) {
+				old.closeConnection();
+			}
+		} catch (Exception e) {
+		}
+		
+		EventLog.getEventLog().log(Values.Log.session, Values.Level.info,
+				"resumed", userID, null);
+		return true;
+	}
+	
+	public boolean isParked() {
+		return parked;
+	}
+	
+	public boolean isExpired() {
+		return parked && System.currentTimeMillis() - parkedAt > Config.get().resumeGrace * 1000L;
+	}
+	
+	public long graceLeft() {
+		return parkedAt + Config.get().resumeGrace * 1000L - System.currentTimeMillis();
+	}
+	
+	
 	/*
 	 * This method logs out the user by removing the client from all
 	 * salient lists, and stopping the Service thread from running.  It 
 	 * will also invoke the cleanUp method to make null all references
-	 * to instance parameters
+	 * to instance parameters.  It can be called from several threads at
+	 * once, the service's, a battle's or the Reaper's, and only the first
+	 * call does anything.
 	 * 
 	 * no input/output
 	 */
 	
 	public void endSession() {
 		
+		if (lists == null || !ended.compareAndSet(false, true)) {
+			return;
+		}
+		
+		EventLog.getEventLog().log(Values.Log.session, Values.Level.info,
+				"logout", userID, null);
+		Sessions.getSessions().remove(token);
 		lists.removeFromLoggedIn(this);
-		service.stop();
+		if (service != null) {
+			service.stop();
+		}
 		
 		try {
-			comms.closeConnection();
+			if (comms != null) {
+				comms.closeConnection();
+			}
 		} catch (Exception e) {
-			System.out.println("Client: error closing connection");
+			EventLog.getEventLog().log(Values.Log.session, Values.Level.error,
+					"close failed", userID, e.toString());
+		}
+		
+		if (robotIsFree()) {
+			Robot.recycle(myRobot);
 		}
 		cleanUp();
 	}
+
+	
+	/*
+	 * robotIsFree is asked once the client has been taken out of the lists.  A robot
+	 * which is, or may yet be, in a battle is left to the battle: the client is battling,
+	 * has been given a battle, is held by a tournament, or had their quick match entry
+	 * taken before they could leave it.
+	 */
+	
+	private boolean robotIsFree() {
+		
+		Lists.Entry e = entry;
+		
+		return currentService != Values.States.battling
+				&& tournament == null
+				&& (service == null || service.getCurrentBattle() == null)
+				&& (e == null || !e.isTaken());
+	}
    
 	/*
 	 * This method points all instance variables to null for garbage
@@ -227,8 +451,10 @@ public class Client implements Comparable<Client> {
 		service = null;
 		userID = null;
 		password = null;
+		token = null;
 		action = null;
 		robotPartsList = null;
+		owned = null;
 		myRobot = null;
 		lists = null;
 		db = null;
@@ -239,22 +465,53 @@ public class Client implements Comparable<Client> {
   
   
 	/*
-	 * Calculate the points a player has earned in their lifetime
+	 * Calculate the points a player has earned in their lifetime.  pointsOf does the
+	 * same for any user record, and is also used to build the Leaderboard.
 	 * 
-	 * Input: none
+	 * Input: none, or the user record
 	 * Output: integer value corresponding to points earned
 	 */
 	
 	private int calculatePoints() {
+		return pointsOf(myDBInfo);
+	}
+	
+	public static int pointsOf(DBObject info) {
 		
 		int temp = 0;
+		Config config = Config.get();
 		
-		temp += (int) myDBInfo.get("wins") * Values.winPoints;
-		temp += (int) myDBInfo.get("draws") * Values.drawPoints;
-		temp += (int) myDBInfo.get("losses") * Values.lossPoints;
+		temp += (int) info.get("wins") * config.winPoints;
+		temp += (int) info.get("draws") * config.drawPoints;
+		temp += (int) info.get("losses") * config.lossPoints;
 
 		return temp;
 	}
+	
+	
+	/*
+	 * addPoints is used by Battle when a result is recorded, so the points and the
+	 * Leaderboard stay current without going back to the Database.
+	 */
+	
+	public void addPoints(int p) {
+		points += p;
+		Leaderboard.getLeaderboard().update(userID, points);
+	}
+	
+	
+	/*
+	 * setRating is used by Ratings after a battle.  An idle player is moved in the
+	 * idle index, which is ordered by rating.
+	 */
+	
+	public void setRating(int r, int g) {
+		rating = r;
+		games = g;
+		if (lists != null) {
+			lists.reindexIdle(this);
+		}
+	}
 
   
 	// Getter-Setter Methods ---------------------------------------------------------
@@ -264,7 +521,7 @@ public class Client implements Comparable<Client> {
 		int[] stats = new int[5];
 		String s = "";
 		
-		myDBInfo = db.getUserInfoFromDB(userID, password);
+		myDBInfo = db.getUserInfo(userID);
 		
 		stats[0] = (int) myDBInfo.get("wins");
 		stats[1] = (int) myDBInfo.get("losses");
@@ -279,13 +536,13 @@ public class Client implements Comparable<Client> {
 		
 		return s;
 	}
-	private void getLoginInfo() throws Exception {
-		String[] ss = comms.read();
+	private void getLoginInfo(String[] ss) throws Exception {
 		userID = ss[0].trim();
 		password = ss[1].trim();
 	}
 	
 	public void setCurrentStatus(Values.States serve) {
+		ServerEvents.StateChange.record(userID, currentService, serve);
 		currentService = serve;
 	}
 
@@ -293,20 +550,67 @@ public class Client implements Comparable<Client> {
 		return currentService;
 	}
 
-	public String getAvailiblePartsList() {
-		String str = "";
-
-		DBObject parts = (BasicDBObject) myDBInfo.get("parts");
+	/*
+	 * scrapOf reads the player's scrap from their record, 0 if they have none yet.
+	 */
+	
+	private static int scrapOf(DBObject info) {
+		return (info.get("scrap") == null) ? 0 : ((Number) info.get("scrap")).intValue();
+	}
+	
+	
+	/*
+	 * The parts a player owns are kept as a bitset, one bit per part id, so a
+	 * robot can be checked with a bit test per part.
+	 * 
+	 * Input: the user record / a part id
+	 * Output: the bitset / boolean, true if the part is owned
+	 */
+	
+	private long[] ownedParts(DBObject info) {
+		
+		long[] bits = new long[(db.numberOfParts() + 63) / 64];
+		DBObject parts = (DBObject) info.get("parts");
+		
+		for (int i = 0; parts != null && i < db.numberOfParts(); i++) {
+			Object has = parts.get(i + "");
+			
+			if (Boolean.TRUE.equals(has)) {
+				bits[i >> 6] |= 1L << (i & 63);
+			}
+		}
+		return bits;
+	}
+	
+	public boolean ownsPart(int id) {
+		return id >= 0 && (id >> 6) < owned.length && (owned[id >> 6] & (1L << (id & 63))) != 0;
+	}
+	
+	public void addPart(int id) {
+		if ((id >> 6) >= owned.length) {
+			owned = Arrays.copyOf(owned, (id >> 6) + 1);
+		}
+		owned[id >> 6] |= 1L << (id & 63);
+	}
 
-		for (int i = 0; i < db.numberOfParts(); i++) {
-			boolean hasPart = (boolean) parts.get(i + "");
+	public String getAvailiblePartsList() {
+		StringBuilder str = new StringBuilder();
 
-			if (hasPart) {
-				str = str + i + ",";
+		for (int i = 0; i < owned.length * 64; i++) {
+			if (ownsPart(i)) {
+				str.append(i).append(',');
 			}
 		}
 
-		return str;
+		return str.toString();
+	}
+	
+	public int getScrap() {
+		return scrap;
+	}
+	
+	public void setScrap(int s) {
+		scrap = s;
 	}
   
 	public String getFlatPartsList() {
@@ -332,10 +636,26 @@ public class Client implements Comparable<Client> {
 		return userID;
 	}
 
-	public String getAction() {
+	public Values.Action getAction() {
 		return action;
 	}
 
+	public Tournament getTournament() {
+		return tournament;
+	}
+
+	public void setTournament(Tournament t) {
+		tournament = t;
+	}
+
+	public String[] getPartsList() {
+		return robotPartsList;
+	}
+
+	public String getToken() {
+		return token;
+	}
+
 	public Robot getRobot() {
 		return myRobot;
 	}
@@ -344,6 +664,14 @@ public class Client implements Comparable<Client> {
 		return points;
 	}
 
+	public int getRating() {
+		return rating;
+	}
+
+	public int getGames() {
+		return games;
+	}
+
 	public String toString() {
 		return userID + ";" + points;
 	}
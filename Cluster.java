@@ -0,0 +1,258 @@
+/*
+ * Cluster is the link between a server node and the Gateway when the server runs as one
+ * of several nodes.  It is only started when clusterGateway is set in the settings file.
+ *
+ * The node registers with the gateway and is given a node id, which is put in front of
+ * every resume token so the gateway knows which node a player belongs to.  Once a second
+ * the node reports its load (sessions, battles, players waiting for a quick match).
+ *
+ * When the gateway sees a player left waiting alone on this node and another alone on a
+ * different node, it asks one node to hand its player over.  The player's session (user,
+ * points, robot) is sent through the gateway to the other node, which parks it under a
+ * new resume token and puts it in its quick match queue.  The player is then told
+ *
+ * 		migrate,<host>,<port>,<token>,
+ *
+ * and resumes on the other node, where the two are paired by the next quick match.
+ *
+ * The control messages are lines of comma separated fields:
+ *
+ * 		node -> gateway		node,<host>,<port>
+ * 							load,<sessions>,<battles>,<waiting>
+ * 							handoff,<to node>,<user>,<points>,<attack>,<defend>,<parts>
+ * 							accepted,<to node>,<user>,<token>,<host>,<port>
+ * 							rejected,<to node>,<user>
+ * 		gateway -> node		welcome,<node id>
+ * 							migrate,<to node>
+ * 							handoff,<from node>,<user>,<points>,<attack>,<defend>,<parts>
+ * 							accepted,<user>,<token>,<host>,<port>
+ * 							rejected,<user>
+ *
+ * Parts are joined with ';' since they are one field.
+ */
+
+package servers;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class Cluster implements Runnable {
+
+	private String 				gatewayHost;
+	private int 				gatewayPort;
+	private String 				host;
+	private int 				port;
+	private int 				nodeID = -1;
+	private boolean 			isStopped = false;
+	private Socket 				socket;
+	private PrintWriter 		out;
+	private Lists 				lists;
+	private Map<String, Client> handoffs;
+
+	public Cluster(String gateway, String nodeHost, int nodePort) {
+
+		int colon = gateway.lastIndexOf(':');
+
+		gatewayHost = gateway.substring(0, colon);
+		gatewayPort = Integer.parseInt(gateway.substring(colon + 1));
+		host = nodeHost;
+		port = nodePort;
+		lists = Lists.getLists();
+		handoffs = new ConcurrentHashMap<String, Client>();
+	}
+
+
+	/*
+	 * run is the implementation of the Runnable interface.  It registers with the
+	 * gateway, starts the load reports, and then carries out the gateway's requests
+	 * until the link is closed.
+	 */
+
+	public void run() {
+
+		try {
+			socket = new Socket(gatewayHost, gatewayPort);
+			socket.setTcpNoDelay(true);
+			out = new PrintWriter(socket.getOutputStream(), true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+			send("node," + host + "," + port);
+
+			String line;
+			while (!isStopped && (line = in.readLine()) != null) {
+				handle(line.split(","));
+			}
+		} catch (Exception e) {
+			if (!isStopped) {
+				EventLog.getEventLog().log(Values.Log.server, Values.Level.error,
+						"cluster link lost", gatewayHost + ":" + gatewayPort, e.toString());
+			}
+		}
+	}
+
+
+	/*
+	 * handle carries out one request from the gateway.
+	 *
+	 * Input: the fields of the message
+	 * Output: none
+	 */
+
+	private void handle(String[] m) throws Exception {
+
+		switch (m[0]) {
+
+		case "welcome":
+			nodeID = Integer.parseInt(m[1]);
+			Sessions.getSessions().setPrefix(nodeID + ".");
+			startReports();
+			System.out.println("Cluster node " + nodeID);
+			break;
+
+		case "migrate":
+			handOff(m[1]);
+			break;
+
+		case "handoff":
+			takeOver(m);
+			break;
+
+		case "accepted":
+			migrated(m[1], m[2], m[3], m[4]);
+			break;
+
+		case "rejected":
+			Client c = handoffs.remove(m[1]);
+			if (c != null) {
+				lists.returnWaiting(c);
+			}
+			break;
+
+		default:
+			break;
+		}
+	}
+
+
+	/*
+	 * handOff takes a player who is waiting for a quick match on this node and offers
+	 * their session to another node.
+	 *
+	 * Input: the id of the node to hand the player to
+	 * Output: none
+	 */
+
+	private void handOff(String target) {
+
+		Client c = lists.claimWaiting();
+
+		if (c == null) {
+			return;
+		}
+
+		StringBuilder parts = new StringBuilder();
+		for (String p : c.getPartsList()) {
+			if (parts.length() > 0) {
+				parts.append(';');
+			}
+			parts.append(p);
+		}
+
+		handoffs.put(c.getUserID(), c);
+		send("handoff," + target + "," + c.getUserID() + "," + c.getPoints() + ","
+				+ c.getRobot().getAttackStat() + "," + c.getRobot().getDefendStat() + ","
+				+ parts);
+	}
+
+
+	/*
+	 * takeOver accepts a player handed over by another node.  The session is parked
+	 * until the player connects here with the token, and is queued for a quick match
+	 * straight away.
+	 *
+	 * Input: the fields of the handoff message
+	 * Output: none
+	 */
+
+	private void takeOver(String[] m) {
+
+		String from = m[1];
+		String user = m[2];
+
+		try {
+			int[] stats = { Integer.parseInt(m[4]), Integer.parseInt(m[5]) };
+			Client c = Client.migrated(user, Integer.parseInt(m[3]), stats, m[6].split(";"));
+
+			lists.addToMap(c);
+			lists.enqueue(c, true);
+			new Thread(c.getService()).start();
+
+			send("accepted," + from + "," + user + "," + c.getToken() + "," + host + "," + port);
+		} catch (Exception e) {
+			send("rejected," + from + "," + user);
+		}
+	}
+
+
+	/*
+	 * migrated is called when the other node has taken the player.  The player is told
+	 * where to resume and the session here is ended.
+	 */
+
+	private void migrated(String user, String token, String toHost, String toPort) {
+
+		Client c = handoffs.remove(user);
+
+		if (c == null) {
+			return;
+		}
+
+		try {
+			c.getComms().write("migrate," + toHost + "," + toPort + "," + token + ",");
+		} catch (Exception e) {
+		}
+
+		EventLog.getEventLog().log(Values.Log.session, Values.Level.info,
+				"migrated", user, toHost + ":" + toPort);
+		c.endSession();
+	}
+
+
+	// Utilities ------------------------------------------------------------------
+
+	private void startReports() {
+
+		Thread reporter = new Thread(new Runnable() {
+			public void run() {
+				while (!isStopped) {
+					send("load," + lists.map.size() + "," + lists.activeBattles.size() + ","
+							+ lists.quickWaiting());
+					try {
+						Thread.sleep(1000L);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "ClusterReports");
+
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+
+	private synchronized void send(String line) {
+		out.println(line);
+	}
+
+	public void stop() {
+		isStopped = true;
+		try {
+			socket.close();
+		} catch (Exception e) {
+		}
+	}
+}
@@ -4,20 +4,50 @@
  * use.  There key methods are read and write which wrap the input and output stream methods
  * of the same name.  This means that inputs and returns are typed as string arrays instead
  * of byte arrays making parsing and error checking more clear when used by other classes.
+ * 
+ * Writes go through a small bounded queue owned by the connection.  Whichever thread finds
+ * the connection idle does the flush, taking every message pending at that moment and
+ * writing them with a single call.  Other threads only add to the queue and return, so a
+ * slow client holds up at most the one thread flushing to it.  When the queue is full the
+ * outboundPolicy in Config decides whether the message is dropped or the client disconnected.
+ * 
+ * Messages are sent from a direct buffer leased from the BufferPool, through the socket's
+ * channel.  Reads still go through the socket's InputStream, because the channel does not
+ * honour the socket time outs that Service relies on; the receive array is allocated once
+ * per connection and reused.
  */
 
 package servers;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Comms {
 	
 	private InputStream 	input = null;
 	private OutputStream 	output = null;
 	private Socket	 		clientSocket = null;
+	private BlockingQueue<String> outbound = null;
+	private AtomicBoolean 	flushing = new AtomicBoolean(false);
+	private volatile boolean closed = false;
+	private SocketChannel 	channel = null;
+	private BufferPool 		pool = null;
+	private int 			slab = -1;
+	private ByteBuffer 		sendBuffer = null;
+	private byte[] 			receiveBuffer = new byte[100];
+	private Message 		received = new Message();
+	private volatile IOException failure = null;
+	private volatile long 	lastHeard = System.currentTimeMillis();
+	private volatile boolean pinged = false;
+	private volatile boolean reaped = false;
 	
 
 	/*
@@ -25,38 +55,76 @@ public class Comms {
 	 * streams for a socket connection with the client an exception is
 	 * thrown.
 	 * 
-	 * Input: a socket object for a given client
+	 * Input: a socket object for a given client, opened through a channel
 	 * Output: none 
 	 */
 	
 	public Comms( Socket s ) throws Exception {
 		
 		clientSocket = s;
+		channel = this.clientSocket.getChannel();
 		input = this.clientSocket.getInputStream();
 		output = this.clientSocket.getOutputStream();
-		clientSocket.setSoTimeout(60000);
+		outbound = new ArrayBlockingQueue<String>(Config.get().outboundQueue);
+		pool = BufferPool.getBufferPool();
+		slab = pool.lease(this);
+		sendBuffer = (slab < 0) ? ByteBuffer.allocateDirect(Config.get().slabSize) : pool.slab(slab);
+		clientSocket.setSoTimeout(Config.get().defaultTimeOut * 1000);
+		clientSocket.setTcpNoDelay(true);
 	}
 
 	
 	/*
 	 * This method is used to close the socket connection and the
-	 * input output streams.
+	 * input output streams.  Writes made after this fail.  The send slab is given
+	 * back to the pool by whichever of this and a flush still running finishes
+	 * last (see releaseSlab).
 	 * 
 	 * No input or output
 	 */
 	
 	public void closeConnection() throws Exception {
 		
-		input.close();
-		output.close();
-		clientSocket.close();
+		try {
+			input.close();
+			output.close();
+			clientSocket.close();
+		} finally {
+			if (failure == null) {
+				failure = new IOException("Connection closed");
+			}
+			closed = true;
+			releaseSlab();
+		}
+	}
+
+	
+	/*
+	 * releaseSlab gives the send slab back once the connection is closed.  It takes the
+	 * flushing flag and never lets it go, so no thread can write into the slab after it
+	 * has been leased to another connection.  It is called after closing and by each
+	 * flush as it lets go of the flag; only the first call made while the flag is free
+	 * does anything.
+	 * 
+	 * No input or output
+	 */
+	
+	private void releaseSlab() {
+		
+		if (closed && flushing.compareAndSet(false, true)) {
+			pool.release(slab);
+			slab = -1;
+			sendBuffer = null;
+		}
 	}
 
 	
 	/*
 	 * The write method wraps the OutputStream method of the same name
 	 * so that a string can be passed in instead of a byte array.  The string 
-	 * passed in will be written to the stream.  If there is a failure to write
+	 * passed in is queued and then flushed, unless another thread is already
+	 * flushing this connection in which case that thread will send it.  If there
+	 * is a failure to write, or the queue is full and the policy is to disconnect,
 	 * an Exception is thrown.
 	 * 
 	 * Input: the string to be written to the stream 
@@ -66,30 +134,204 @@ public class Comms {
 	
 	public void write(String response) throws Exception {
 		
-		output.write( response.getBytes() );
+		enqueue( response );
+		flush();
+	}
+
+	
+	/*
+	 * enqueue adds a message to the outbound queue without writing it.
+	 * 
+	 * Input: the string to be written to the stream
+	 * Output: none
+	 */
+	
+	public void enqueue(String response) throws IOException {
+		
+		if ( failure != null ) {
+			throw failure;
+		}
+
+		if ( !outbound.offer( response ) ) {
+			
+			EventLog.getEventLog().log( Values.Log.session, Values.Level.error, 
+					"outbound full", clientSocket.getRemoteSocketAddress().toString(),
+					Config.get().outboundPolicy.name() );
+			
+			if ( Config.get().outboundPolicy == Values.Overflow.disconnect ) {
+				failure = new IOException( "Outbound queue full" );
+				try {
+					clientSocket.close();
+				} catch ( IOException e ) {
+				}
+				throw failure;
+			}
+		}
+	}
+
+	
+	/*
+	 * flush writes every pending message to the socket in one call.  Only one thread
+	 * flushes at a time.  After letting go it checks the queue again, so a message added
+	 * while it was writing is not left behind.
+	 * 
+	 * No input or output
+	 */
+	
+	public void flush() throws IOException {
+		
+		while ( !outbound.isEmpty() && flushing.compareAndSet( false, true ) ) {
+			try {
+				String msg;
+
+				sendBuffer.clear();
+				while ( ( msg = outbound.poll() ) != null ) {
+					encode( msg );
+				}
+				send();
+			} catch ( IOException e ) {
+				failure = e;
+				throw e;
+			} finally {
+				flushing.set( false );
+				releaseSlab();
+			}
+		}
+
+		if ( failure != null ) {
+			throw failure;
+		}
+	}
+
+	
+	/*
+	 * encode copies the characters of a message onto the end of the send buffer.
+	 * If the buffer fills up it is sent and refilled.  Messages are plain ascii.
+	 * 
+	 * Input: the message
+	 * Output: none
+	 */
+	
+	private void encode( String msg ) throws IOException {
+		
+		for ( int i = 0; i < msg.length(); i++ ) {
+			if ( !sendBuffer.hasRemaining() ) {
+				send();
+				sendBuffer.clear();
+			}
+			sendBuffer.put( (byte) msg.charAt( i ) );
+		}
 	}
 
 	
 	/*
-	 * This method wraps the OutputStream method of the same name.  A byte array
-	 * is read in from the stream and then converted to a string array for parsing 
-	 * by the calling method.  If there is a failure to read from the stream an 
-	 * exception is thrown.
+	 * send writes the contents of the send buffer to the channel.
+	 * 
+	 * No input or output
+	 */
+	
+	private void send() throws IOException {
+		
+		sendBuffer.flip();
+		while ( sendBuffer.hasRemaining() ) {
+			channel.write( sendBuffer );
+		}
+	}
+
+	
+	/*
+	 * This method wraps the InputStream method of the same name.  A message is
+	 * read into the receive array and returned as a Message view over it, which
+	 * stays valid until the next read.  If there is a failure to read from the 
+	 * stream, or the client has closed the connection, an exception is thrown.
+	 * 
+	 * Input: none
+	 * Output: the Message for this connection
+	 */
+	public Message receive() throws IOException {
+		
+		int length = input.read( receiveBuffer, 0, receiveBuffer.length );
+		if ( length < 0 ) {
+			throw new EOFException();
+		}
+		lastHeard = System.currentTimeMillis();
+		received.wrap( receiveBuffer, length );
+
+		return received;
+	}
+
+	
+	/*
+	 * Same as above, but the fields are copied out into a string array for 
+	 * parsing by the calling method.  Used where the fields are kept, such as
+	 * at sign in.
 	 * 
 	 * Input: none
 	 * Output: a string array is returned
 	 */
 	public String[] read() throws IOException {
 		
-		byte[] request = new byte[100];
-		input.read( request, 0, 100 );
-		String msg = new String( request );
+		return receive().toArray();
+	}
 
-		return msg.split( "," );
+	
+	/*
+	 * The following methods are used by Spectators.  A watcher's connection is made
+	 * non-blocking and written to directly from the shared frame buffers, bypassing the
+	 * outbound queue.  send returns how many bytes the socket took, which may be none.
+	 */
+	
+	public void setBlocking( boolean blocking ) throws IOException {
+		channel.configureBlocking( blocking );
+	}
+	
+	public int send( ByteBuffer frame ) throws IOException {
+		return channel.write( frame );
+	}
+
+	/*
+	 * The following methods are used by the Reaper.  Every message received stamps
+	 * lastHeard.  A client which sends heartbeats is marked, as it is held to the
+	 * shorter heartbeat time out.  reap shuts the input of the socket so a read
+	 * blocked on it fails, and marks the connection so the failure is not taken
+	 * for a dropped connection to be resumed.
+	 */
+	
+	public long getLastHeard() {
+		return lastHeard;
+	}
+	
+	public void heartbeat() {
+		pinged = true;
+	}
+	
+	public boolean hasPinged() {
+		return pinged;
+	}
+	
+	public void reap() {
+		reaped = true;
+		try {
+			clientSocket.shutdownInput();
+		} catch (IOException e) {
+		}
+	}
+	
+	public boolean isReaped() {
+		return reaped;
 	}
 
 	//Utilities ------------------------------------------------------------------
 	
+	/*
+	 * setReadTimeOut sets the time out in milliseconds, for a read with a deadline.
+	 * 0 would mean no time out, so it is at least 1.
+	 */
+	
+	public void setReadTimeOut( long ms ) throws IOException {
+		this.clientSocket.setSoTimeout( (int) Math.max( 1L, Math.min( ms, Integer.MAX_VALUE ) ) );
+	}
+	
 	public void setTimeOut( int s ) throws Exception {
 		try {
 			this.clientSocket.setSoTimeout(s * 1000);
@@ -0,0 +1,302 @@
+/*
+ * Config holds the tuning settings in use by the server.  The defaults are the constants in
+ * Values, and any of them can be overridden in a properties file (server.properties unless
+ * another file is given on the command line).  The settings are kept in an immutable
+ * snapshot.  Threads read them with Config.get() and never see a half updated set.
+ *
+ * The file is checked for changes while the server runs and can also be reloaded with the
+ * reload command.  A reload builds a whole new snapshot and swaps it in with one write;
+ * if any value in the file is bad the reload is refused and the old snapshot stays.
+ * Settings which size things made at start up (the port, the buffer pool, the event log,
+ * the accept queue and handshake workers, the robot pool, the Referee's queue, the cluster
+ * link and gateway, the battle store) are only read once and keep their start up value on reload.
+ */
+
+package servers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Properties;
+
+public class Config {
+
+	private static volatile Config 	current = new Config(new Properties(), null);
+	private static String 			fileName = Values.configFile;
+	private static volatile long 	lastModified = 0;
+
+	// Start up only
+	public final int 				port;
+	public final int 				acceptQueue;
+	public final int 				slabCount;
+	public final int 				slabSize;
+	public final int 				logCapacity;
+	public final String 			logFile;
+	public final String 			clusterGateway;
+	public final String 			nodeHost;
+	public final String 			leaderboardFile;
+	public final int 				battleStore;
+	public final int 				handshakeWorkers;
+	public final int 				robotPool;
+	public final int 				refereeQueue;
+	public final int 				gatewayPort;
+	public final int 				controlPort;
+	public final int 				gatewayWorkers;
+	public final int 				gatewayAffinity;
+
+	// Time outs, in seconds
+	public final int 				defaultTimeOut;
+	public final int 				handshakeTimeOut;
+	public final int 				idleTimeOut;
+	public final int 				heartbeatTimeOut;
+	public final int 				reapInterval;
+	public final int 				lobbyTimeOut;
+	public final int 				queueTimeOut;
+	public final int 				waitTime;
+	public final int 				resumeGrace;
+	public final int 				migrateCooldown;
+	public final int 				databaseHalfLife;
+
+	// Time outs, in milliseconds
+	public final int 				replyGrace;
+	public final int 				gatewayHandshake;
+
+	// Matchmaking and battles
+	public final int 				matchInterval;
+	public final int 				loginBatch;
+	public final int 				maxTurns;
+	public final Values.Action 		timeoutAction;
+	public final int 				winPoints;
+	public final int 				drawPoints;
+	public final int 				lossPoints;
+	public final int 				winScrap;
+	public final int 				drawScrap;
+	public final int 				lossScrap;
+
+	// Connections and admission
+	public final int 				outboundQueue;
+	public final Values.Overflow 	outboundPolicy;
+	public final int 				maxSessions;
+	public final int 				maxBattles;
+	public final int 				maxDatabaseLatency;
+	public final int 				maxHeapPercent;
+	public final int 				retryAfter;
+	public final int 				maxRetryAfter;
+	public final int 				spectatorLag;
+	public final int 				tournamentBatch;
+	public final int 				tournamentStagger;
+	public final int 				leaderboardCheckpoint;
+	public final int 				ratingFlush;
+	public final int 				initialRating;
+	public final int 				provisionalGames;
+	public final int 				provisionalK;
+	public final int 				ratingK;
+	public final int 				masterRating;
+	public final int 				masterK;
+	public final int 				listSize;
+	public final int 				leaderboardSize;
+
+	// Shop
+	public final int 				partPrice;
+	public final int 				purchaseHistory;
+
+	// Cheating
+	public final int 				anomalyLimit;
+	public final int 				anomalyWindow;
+	public final int 				minActionMillis;
+
+
+	/*
+	 * The constructor reads every setting from the properties, using the Values
+	 * default for any that are missing.  If a start up snapshot is given its start
+	 * up settings are kept.  A value which is not a number, or is out of range,
+	 * throws an IllegalArgumentException naming the setting.
+	 */
+
+	private Config(Properties p, Config startup) {
+
+		port = (startup != null) ? startup.port : number(p, "port", Values.port, 1);
+		acceptQueue = (startup != null) ? startup.acceptQueue : number(p, "acceptQueue", Values.acceptQueue, 1);
+		slabCount = (startup != null) ? startup.slabCount : number(p, "slabCount", Values.slabCount, 1);
+		slabSize = (startup != null) ? startup.slabSize : number(p, "slabSize", Values.slabSize, 64);
+		logCapacity = (startup != null) ? startup.logCapacity : number(p, "logCapacity", Values.logCapacity, 2);
+		logFile = (startup != null) ? startup.logFile : p.getProperty("logFile", Values.logFile).trim();
+		clusterGateway = (startup != null) ? startup.clusterGateway : p.getProperty("clusterGateway", Values.clusterGateway).trim();
+		nodeHost = (startup != null) ? startup.nodeHost : p.getProperty("nodeHost", Values.nodeHost).trim();
+		leaderboardFile = (startup != null) ? startup.leaderboardFile : p.getProperty("leaderboardFile", Values.leaderboardFile).trim();
+		battleStore = (startup != null) ? startup.battleStore : number(p, "battleStore", Values.battleStore, 0);
+		handshakeWorkers = (startup != null) ? startup.handshakeWorkers : number(p, "handshakeWorkers", Values.handshakeWorkers, 1);
+		robotPool = (startup != null) ? startup.robotPool : number(p, "robotPool", Values.robotPool, 1);
+		refereeQueue = (startup != null) ? startup.refereeQueue : number(p, "refereeQueue", Values.refereeQueue, 1);
+		gatewayPort = (startup != null) ? startup.gatewayPort : number(p, "gatewayPort", Values.gatewayPort, 1);
+		controlPort = (startup != null) ? startup.controlPort : number(p, "controlPort", Values.controlPort, 1);
+		gatewayWorkers = (startup != null) ? startup.gatewayWorkers : number(p, "gatewayWorkers", Values.gatewayWorkers, 1);
+		gatewayAffinity = (startup != null) ? startup.gatewayAffinity : number(p, "gatewayAffinity", Values.gatewayAffinity, 1);
+
+		defaultTimeOut = number(p, "defaultTimeOut", Values.defaultTimeOut, 1);
+		handshakeTimeOut = number(p, "handshakeTimeOut", Values.handshakeTimeOut, 1);
+		idleTimeOut = number(p, "idleTimeOut", Values.idleTimeOut, 1);
+		heartbeatTimeOut = number(p, "heartbeatTimeOut", Values.heartbeatTimeOut, 1);
+		reapInterval = number(p, "reapInterval", Values.reapInterval, 1);
+		lobbyTimeOut = number(p, "lobbyTimeOut", Values.lobbyTimeOut, 1);
+		queueTimeOut = number(p, "queueTimeOut", Values.queueTimeOut, 1);
+		waitTime = number(p, "waitTime", Values.waitTime, 1);
+		resumeGrace = number(p, "resumeGrace", Values.resumeGrace, 0);
+		migrateCooldown = number(p, "migrateCooldown", Values.migrateCooldown, 0);
+		databaseHalfLife = number(p, "databaseHalfLife", Values.databaseHalfLife, 1);
+
+		replyGrace = number(p, "replyGrace", Values.replyGrace, 0);
+		gatewayHandshake = number(p, "gatewayHandshake", Values.gatewayHandshake, 1);
+
+		matchInterval = number(p, "matchInterval", Values.matchInterval, 1);
+		loginBatch = number(p, "loginBatch", Values.loginBatch, 1);
+		maxTurns = number(p, "maxTurns", Values.maxTurns, 1);
+		timeoutAction = Values.Action.valueOf(
+				p.getProperty("timeoutAction", Values.timeoutAction.name()).trim());
+		if (timeoutAction != Values.Action.defend && timeoutAction != Values.Action.forfeit) {
+			throw new IllegalArgumentException("timeoutAction must be defend or forfeit");
+		}
+		winPoints = number(p, "winPoints", Values.winPoints, 0);
+		drawPoints = number(p, "drawPoints", Values.drawPoints, 0);
+		lossPoints = number(p, "lossPoints", Values.lossPoints, 0);
+		winScrap = number(p, "winScrap", Values.winScrap, 0);
+		drawScrap = number(p, "drawScrap", Values.drawScrap, 0);
+		lossScrap = number(p, "lossScrap", Values.lossScrap, 0);
+
+		outboundQueue = number(p, "outboundQueue", Values.outboundQueue, 1);
+		outboundPolicy = Values.Overflow.valueOf(
+				p.getProperty("outboundPolicy", Values.outboundPolicy.name()).trim());
+		maxSessions = number(p, "maxSessions", Values.maxSessions, 1);
+		maxBattles = number(p, "maxBattles", Values.maxBattles, 1);
+		maxDatabaseLatency = number(p, "maxDatabaseLatency", Values.maxDatabaseLatency, 1);
+		maxHeapPercent = number(p, "maxHeapPercent", Values.maxHeapPercent, 1);
+		retryAfter = number(p, "retryAfter", Values.retryAfter, 1);
+		maxRetryAfter = number(p, "maxRetryAfter", Values.maxRetryAfter, 1);
+		spectatorLag = number(p, "spectatorLag", Values.spectatorLag, 1);
+		tournamentBatch = number(p, "tournamentBatch", Values.tournamentBatch, 1);
+		tournamentStagger = number(p, "tournamentStagger", Values.tournamentStagger, 1);
+		leaderboardCheckpoint = number(p, "leaderboardCheckpoint", Values.leaderboardCheckpoint, 1);
+		ratingFlush = number(p, "ratingFlush", Values.ratingFlush, 1);
+		initialRating = number(p, "initialRating", Values.initialRating, 0);
+		provisionalGames = number(p, "provisionalGames", Values.provisionalGames, 0);
+		provisionalK = number(p, "provisionalK", Values.provisionalK, 0);
+		ratingK = number(p, "ratingK", Values.ratingK, 0);
+		masterRating = number(p, "masterRating", Values.masterRating, 0);
+		masterK = number(p, "masterK", Values.masterK, 0);
+		listSize = number(p, "listSize", Values.listSize, 1);
+		leaderboardSize = number(p, "leaderboardSize", Values.leaderboardSize, 1);
+
+		partPrice = number(p, "partPrice", Values.partPrice, 0);
+		purchaseHistory = number(p, "purchaseHistory", Values.purchaseHistory, 1);
+
+		anomalyLimit = number(p, "anomalyLimit", Values.anomalyLimit, 2);
+		anomalyWindow = number(p, "anomalyWindow", Values.anomalyWindow, 1);
+		minActionMillis = number(p, "minActionMillis", Values.minActionMillis, 0);
+	}
+
+	public static Config get() {
+		return current;
+	}
+
+
+	/*
+	 * load reads the file when the server starts, including the start up settings.
+	 * A missing file is not an error; the defaults are used.
+	 *
+	 * Input: the name of the properties file
+	 * Output: none
+	 */
+
+	public static synchronized void load(String file) throws Exception {
+
+		fileName = file;
+		lastModified = new File(file).lastModified();
+		current = new Config(read(file), null);
+	}
+
+
+	/*
+	 * reload reads the file again and swaps in the new snapshot.
+	 *
+	 * Input: none
+	 * Output: boolean, true if the new settings were taken, false if the file had errors
+	 */
+
+	public static synchronized boolean reload() {
+
+		try {
+			lastModified = new File(fileName).lastModified();
+			current = new Config(read(fileName), current);
+
+			EventLog.getEventLog().log(Values.Log.server, Values.Level.info,
+					"config reloaded", fileName, null);
+			return true;
+		} catch (Exception e) {
+			EventLog.getEventLog().log(Values.Log.server, Values.Level.error,
+					"config rejected", fileName, e.getMessage());
+			return false;
+		}
+	}
+
+
+	/*
+	 * reloadIfChanged is called regularly by GameManager.  It only reads the file
+	 * if its modified time has changed.
+	 */
+
+	public static void reloadIfChanged() {
+
+		long modified = new File(fileName).lastModified();
+
+		if (modified != 0 && modified != lastModified) {
+			reload();
+		}
+	}
+
+
+	// Utilities ------------------------------------------------------------------
+
+	private static Properties read(String file) throws Exception {
+
+		Properties p = new Properties();
+		File f = new File(file);
+
+		if (f.exists()) {
+			InputStream in = new FileInputStream(f);
+			try {
+				p.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		return p;
+	}
+
+	private static int number(Properties p, String key, int def, int min) {
+
+		String s = p.getProperty(key);
+
+		if (s == null) {
+			return def;
+		}
+
+		try {
+			int value = Integer.parseInt(s.trim());
+
+			if (value < min) {
+				throw new IllegalArgumentException(key + " must be at least " + min);
+			}
+			return value;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(key + " is not a number: " + s);
+		}
+	}
+
+	public String toString() {
+		return "port=" + port + " matchInterval=" + matchInterval + " waitTime=" + waitTime
+				+ " timeoutAction=" + timeoutAction.name()
+				+ " maxTurns=" + maxTurns + " defaultTimeOut=" + defaultTimeOut
+				+ " idleTimeOut=" + idleTimeOut + " maxSessions=" + maxSessions
+				+ " maxBattles=" + maxBattles + " outboundPolicy=" + outboundPolicy.name();
+	}
+}
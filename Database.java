@@ -3,6 +3,10 @@
  * Also, it is used to update the server for new client info, as well as query the
  * individual robot parts values.  
  * 
+ * The stats of each loadout (set of parts) are worked out once and kept in a cache
+ * keyed by the sorted part ids packed into a long, since most players use the same
+ * robot match after match.  reloadParts empties the cache when the parts change.
+ * 
  * Since this class is used by several of the the most important classes and 
  * modification of the information needs to be controlled, Database is implemented
  * as a singleton.  
@@ -18,7 +22,10 @@ import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Database {
 
@@ -29,7 +36,9 @@ public class Database {
 	private DBCollection 	collectionUsers;
 	private DBCollection 	collectionParts;
 	private int 			numberOfPartTypes = 0;
-	private int 			numberOfParts = 0;
+	private volatile int 	numberOfParts = 0;
+	private Admission 		admission;
+	private volatile Map<Long, int[]> loadouts = new ConcurrentHashMap<Long, int[]>();
 	
 	
 	/*
@@ -49,6 +58,7 @@ public class Database {
 	}
 
 	private Database() {
+		admission = Admission.getAdmission();
 		try {
 			client = new MongoClient("localhost", 27017);
 			db_Users = (DB) client.getDatabase("Users");
@@ -78,14 +88,19 @@ public class Database {
 	
 	
 	public synchronized void awardScrap(String userID, int scrap) {
+		ServerEvents.DatabaseCall call = ServerEvents.DatabaseCall.start("awardScrap", userID);
+		long start = System.nanoTime();
 		BasicDBObject query1 = new BasicDBObject("user", userID);
 		BasicDBObject query2 = new BasicDBObject().append("$inc",
 				new BasicDBObject().append("scrap", Integer.valueOf(scrap)));
 
 		collectionUsers.update(query1, query2);
+		finish(call, start);
 	}
 
 	public synchronized void incrementWinDB(String userID) {
+		ServerEvents.DatabaseCall call = ServerEvents.DatabaseCall.start("incrementWinDB", userID);
+		long start = System.nanoTime();
 		BasicDBObject query1 = new BasicDBObject();
 		BasicDBObject query2 = new BasicDBObject().append("$inc",
 				new BasicDBObject().append("wins", Integer.valueOf(1)));
@@ -93,9 +108,12 @@ public class Database {
 		query1.put("user", userID);
 
 		collectionUsers.update(query1, query2);
+		finish(call, start);
 	}
 
 	public synchronized void incrementLossDB(String userID) {
+		ServerEvents.DatabaseCall call = ServerEvents.DatabaseCall.start("incrementLossDB", userID);
+		long start = System.nanoTime();
 		BasicDBObject query = new BasicDBObject();
 		BasicDBObject query2 = new BasicDBObject().append("$inc",
 				new BasicDBObject().append("losses", Integer.valueOf(1)));
@@ -103,9 +121,12 @@ public class Database {
 		query.put("user", userID);
 
 		collectionUsers.update(query, query2);
+		finish(call, start);
 	}
 
 	public synchronized void incrementDrawDB(String userID) {
+		ServerEvents.DatabaseCall call = ServerEvents.DatabaseCall.start("incrementDrawDB", userID);
+		long start = System.nanoTime();
 		BasicDBObject query = new BasicDBObject();
 		BasicDBObject query2 = new BasicDBObject().append("$inc",
 				new BasicDBObject().append("draws", Integer.valueOf(1)));
@@ -113,6 +134,65 @@ public class Database {
 		query.put("user", userID);
 
 		collectionUsers.update(query, query2);
+		finish(call, start);
+	}
+
+	
+	/*
+	 * saveRatings writes a batch of ratings from Ratings, one update per player
+	 * however many battles they have played since the last batch.
+	 * 
+	 * Input: a map of user name to { rating, rated games }
+	 * Output: none
+	 */
+	
+	public synchronized void saveRatings(Map<String, int[]> batch) {
+		ServerEvents.DatabaseCall call = ServerEvents.DatabaseCall.start("saveRatings", null);
+		long start = System.nanoTime();
+		
+		for (Map.Entry<String, int[]> entry : batch.entrySet()) {
+			BasicDBObject query = new BasicDBObject("user", entry.getKey());
+			BasicDBObject update = new BasicDBObject().append("$set",
+					new BasicDBObject().append("rating", Integer.valueOf(entry.getValue()[0]))
+							.append("games", Integer.valueOf(entry.getValue()[1])));
+
+			collectionUsers.update(query, update);
+		}
+		finish(call, start);
+	}
+
+	
+	/*
+	 * buyPart is a purchase from the Shop, made as one conditional update: the scrap
+	 * is taken, the part added and the key recorded only if the player has at least
+	 * the price in scrap, does not own the part, and has not used the key.  The last
+	 * purchaseHistory keys are kept.
+	 * 
+	 * It is not synchronized.  The update is atomic in the Database and the driver is
+	 * safe to share, so purchases do not queue behind the other calls.
+	 * 
+	 * Input: the user name, the part, its price and the purchase key (recorded with the part)
+	 * Output: the user record as it was before, or null if nothing was changed
+	 */
+	
+	public DBObject buyPart(String userID, int part, int price, String key) {
+		ServerEvents.DatabaseCall call = ServerEvents.DatabaseCall.start("buyPart", userID);
+		long start = System.nanoTime();
+		
+		BasicDBObject query = new BasicDBObject("user", userID)
+				.append("scrap", new BasicDBObject("$gte", Integer.valueOf(price)))
+				.append("parts." + part, new BasicDBObject("$ne", Boolean.TRUE))
+				.append("purchases", new BasicDBObject("$ne", key));
+		BasicDBObject update = new BasicDBObject()
+				.append("$inc", new BasicDBObject("scrap", Integer.valueOf(-price)))
+				.append("$set", new BasicDBObject("parts." + part, Boolean.TRUE))
+				.append("$push", new BasicDBObject("purchases", 
+						new BasicDBObject("$each", Arrays.asList(key))
+								.append("$slice", Integer.valueOf(-Config.get().purchaseHistory))));
+
+		DBObject before = collectionUsers.findAndModify(query, update);
+		finish(call, start);
+		return before;
 	}
 
 	// end update methods ----------------------------------------------------------
@@ -143,39 +223,113 @@ public class Database {
 	 */
 	public DBObject getUserInfoFromDB(String userID, String password) {
 		
+		ServerEvents.DatabaseCall call = ServerEvents.DatabaseCall.start("getUserInfo", userID);
+		long start = System.nanoTime();
 		BasicDBObject query = new BasicDBObject();
 
 		query.put("user", userID);
 		DBCursor cursor = collectionUsers.find(query);
 		DBObject obj = cursor.next();
+		finish(call, start);
 
 		if (obj.get("password").equals(password))
 			return obj;
 		return null;
 	}
 
-	/* deprecated
-	private DBObject getUserInfo(String userID) {
+	/*
+	 * getAllUsers is used to build the Leaderboard the first time the server runs.
+	 * 
+	 *  Input: none
+	 *  Output: a cursor over every user
+	 */
+	public DBCursor getAllUsers() {
+		return collectionUsers.find(new BasicDBObject());
+	}
+	
+	/*
+	 * getAllParts is used to build the Shop's catalog.
+	 * 
+	 *  Input: none
+	 *  Output: a cursor over every part
+	 */
+	public DBCursor getAllParts() {
+		return collectionParts.find();
+	}
+
+	
+	/*
+	 * getUserInfo returns the user data without checking a password.  It is only used
+	 * for players already signed in, including those handed over from another node of
+	 * a cluster, whose password this server never sees.
+	 * 
+	 *  Input: the user name
+	 *  Output: returns mongo DBOject
+	 */
+	public DBObject getUserInfo(String userID) {
+		
+		ServerEvents.DatabaseCall call = ServerEvents.DatabaseCall.start("getUserInfo", userID);
+		long start = System.nanoTime();
 		BasicDBObject query = new BasicDBObject();
 
 		query.put("user", userID);
 		DBCursor cursor = collectionUsers.find(query);
-		return cursor.next();
+		DBObject obj = cursor.next();
+		finish(call, start);
+		return obj;
 	}
-	 */
 	
 	
 	/*
-	 * This method is used to ascertain the stats for a given robot setup.
+	 * This method is used to ascertain the stats for a given robot setup.  A
+	 * loadout seen before is answered from the cache without a Database call.
+	 * The array returned is shared and must not be changed.
 	 * 
 	 * Input: a string array containing the parts list for a robot belonging to 
 	 * a given client
 	 * Output: an int array containing 2 values, [0]attack, and [1]defend
 	 */
 	
-	public synchronized int[] getAttackDefend(String[] partsList) {
+	public int[] getAttackDefend(String[] partsList) {
+		
+		Map<Long, int[]> cache = loadouts;
+		long key = loadoutKey(partsList);
+		
+		if (key < 0) {
+			return sumParts(partsList);
+		}
+		
+		int[] ad = cache.get(key);
+		if (ad == null) {
+			ad = sumParts(partsList);
+			cache.put(key, ad);
+		}
+		return ad;
+	}
+	
+	
+	/*
+	 * reloadParts is called when the parts collection has changed.  The part
+	 * counts are read again and the loadout cache is emptied.  A lookup which was
+	 * under way fills the old cache, which is let go.
+	 */
+	
+	public synchronized void reloadParts() {
+		numberOfPartTypes = 0;
+		numberOfParts = 0;
+		loadouts = new ConcurrentHashMap<Long, int[]>();
+	}
+	
+	
+	/*
+	 * sumParts adds up the stats of the parts from the Database.
+	 */
+	
+	private synchronized int[] sumParts(String[] partsList) {
 		
 		int[] ad = new int[2];
+		ServerEvents.DatabaseCall call = ServerEvents.DatabaseCall.start("getAttackDefend", null);
+		long start = System.nanoTime();
 	
 		for (int i = 0; i < partsList.length; i++) {
 			String s = partsList[i];
@@ -183,6 +337,7 @@ public class Database {
 			ad[0] += ((Integer) obj.get("attack")).intValue();
 			ad[1] += ((Integer) obj.get("defend")).intValue();
 		}
+		finish(call, start);
 
 		return ad;
 	}
@@ -203,6 +358,54 @@ public class Database {
 
 	// Utilities -----------------------------------------------------------
 	
+	/*
+	 * loadoutKey packs a parts list into a long.  The part ids are sorted, as the
+	 * order does not change the stats, and written as digits in base (number of
+	 * parts + 1).  Lists which are not numbers in range, or which do not fit in a
+	 * long, get -1 and are not cached.
+	 * 
+	 * Input: the parts list
+	 * Output: the key, or -1
+	 */
+	
+	private long loadoutKey(String[] partsList) {
+		
+		long base = numberOfParts() + 1L;
+		int[] ids = new int[partsList.length];
+		long key = 0;
+		
+		try {
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = Integer.parseInt(partsList[i]);
+				if (ids[i] < 0 || ids[i] >= base - 1) {
+					return -1;
+				}
+			}
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+		Arrays.sort(ids);
+		
+		for (int i = 0; i < ids.length; i++) {
+			if (key > (Long.MAX_VALUE - base) / base) {
+				return -1;
+			}
+			key = key * base + ids[i] + 1;
+		}
+		return key;
+	}
+	
+	/*
+	 * finish ends the flight recorder event for a call and feeds its time into
+	 * the admission control.
+	 */
+	
+	private void finish(ServerEvents.DatabaseCall call, long start) {
+		call.commit();
+		admission.recordDatabase(System.nanoTime() - start);
+	}
+	
+	
 	/*
 	 * This method returns the number of part types (int) in the database
 	 */
@@ -230,13 +433,20 @@ public class Database {
 	
 	
 	/*
-	 * This method return the number of parts (int) in the database
+	 * This method return the number of parts (int) in the database.  Once known it
+	 * is read without taking the lock, as every loadout lookup needs it.
 	 */
-	public synchronized int numberOfParts() {
+	public int numberOfParts() {
 		
-		if ( numberOfParts == 0 )
-			numberOfParts = (int) collectionParts.count();
+		int n = numberOfParts;
 		
-		return numberOfParts;
+		if ( n == 0 ) {
+			synchronized (this) {
+				if ( numberOfParts == 0 )
+					numberOfParts = (int) collectionParts.count();
+				n = numberOfParts;
+			}
+		}
+		return n;
 	}
 }
@@ -0,0 +1,365 @@
+/*
+ * EventLog is used to record structured events (battle rounds, sessions, matchmaking)
+ * without holding up the game threads.  Events are placed into a fixed size ring buffer
+ * and a single background thread writes them out as JSON lines to the logFile in Config.
+ *
+ * Game threads only ever claim a slot in the ring and fill it in.  If the ring is full
+ * the event is dropped and counted rather than making the caller wait.  Each category of
+ * event has its own level so that, for example, battle rounds can be logged at debug while
+ * sessions are logged at info.  The singleton pattern is used so there is one ring and
+ * one writer for the whole server.
+ */
+
+package servers;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+public class EventLog implements Runnable {
+
+	private static EventLog 		eventLog;
+	private final Slot[] 			ring;
+	private final AtomicLongArray 	sequence;
+	private final AtomicLong 		tail = new AtomicLong();
+	private final AtomicLong 		dropped = new AtomicLong();
+	private final int 				mask;
+	private long 					head = 0;
+	private volatile Values.Level[] levels;
+	private volatile boolean 		isStopped = false;
+	private Thread 					writer;
+	private BufferedWriter 			sink;
+	private String 					fileName;
+
+
+	/*
+	 * A slot is filled in place by the game thread which claimed it.  The
+	 * slots are allocated once, up front, and reused for the life of the server.
+	 */
+
+	private static class Slot {
+		long 			time;
+		Values.Log 		category;
+		Values.Level 	level;
+		String 			event;
+		String 			subject;
+		String 			detail;
+		int 			count;
+		long[] 			values = new long[4];
+	}
+
+
+	/*
+	 * This method along with the constructor are the implementation of the
+	 * singleton pattern.  The writer thread is started the first time the log
+	 * is requested.
+	 *
+	 * --------------------------------------------------------------------------------
+	 */
+
+	public static synchronized EventLog getEventLog() {
+
+		if (eventLog == null) {
+			eventLog = new EventLog(Config.get().logCapacity, Config.get().logFile);
+			eventLog.start();
+		}
+		return eventLog;
+	}
+
+	private EventLog(int capacity, String file) {
+
+		int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+
+		ring = new Slot[size];
+		sequence = new AtomicLongArray(size);
+		mask = size - 1;
+		fileName = file;
+
+		for (int i = 0; i < size; i++) {
+			ring[i] = new Slot();
+			sequence.set(i, i);
+		}
+
+		setAll(Values.debug ? Values.Level.debug : Values.Level.info);
+	}
+	// end singleton -------------------------------------------------------------------
+
+
+	/*
+	 * The following methods are used by the game threads to record events.  None of
+	 * them block.  Callers should check isEnabled before building any strings for an
+	 * event so that nothing is allocated when the category is turned down.
+	 *
+	 * Input: the category and level of the event, a short event name, the subject of
+	 * 		  the event (session id, user id) and either a detail string or up to four
+	 * 		  numeric values.
+	 * Output: none
+	 *
+	 * ---------------------------------------------------------------------------------
+	 */
+
+	public boolean isEnabled(Values.Log category, Values.Level level) {
+		return level.ordinal() <= levels[category.ordinal()].ordinal();
+	}
+
+	public void log(Values.Log category, Values.Level level, String event,
+			String subject, String detail) {
+		publish(category, level, event, subject, detail, 0, 0L, 0L, 0L, 0L);
+	}
+
+	public void log(Values.Log category, Values.Level level, String event,
+			String subject, long a, long b) {
+		publish(category, level, event, subject, null, 2, a, b, 0L, 0L);
+	}
+
+	public void log(Values.Log category, Values.Level level, String event,
+			String subject, long a, long b, long c, long d) {
+		publish(category, level, event, subject, null, 4, a, b, c, d);
+	}
+
+
+	/*
+	 * publish claims the next free slot with a compare and set on the tail.  A slot
+	 * is free when its sequence equals the position being claimed, and it is handed to
+	 * the writer by moving the sequence one past it.  If the writer has fallen a full
+	 * ring behind the event is dropped.
+	 */
+
+	private void publish(Values.Log category, Values.Level level, String event,
+			String subject, String detail, int count, long a, long b, long c, long d) {
+
+		if (!isEnabled(category, level)) {
+			return;
+		}
+
+		long pos = tail.get();
+
+		while (true) {
+			long seq = sequence.get((int) (pos & mask));
+
+			if (seq == pos) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					break;
+				}
+				pos = tail.get();
+			} else if (seq < pos) {
+				dropped.incrementAndGet();
+				return;
+			} else {
+				pos = tail.get();
+			}
+		}
+
+		Slot slot = ring[(int) (pos & mask)];
+		slot.time = System.currentTimeMillis();
+		slot.category = category;
+		slot.level = level;
+		slot.event = event;
+		slot.subject = subject;
+		slot.detail = detail;
+		slot.count = count;
+		slot.values[0] = a;
+		slot.values[1] = b;
+		slot.values[2] = c;
+		slot.values[3] = d;
+
+		sequence.set((int) (pos & mask), pos + 1);
+	}
+
+	// end log methods -----------------------------------------------------------------
+
+
+	/*
+	 * run is the implementation of the Runnable interface.  This is the only thread that
+	 * touches the file.  It drains whatever is in the ring, flushes, and then parks for a
+	 * short time when there is nothing left to write.  Producers never wake this thread so
+	 * logging costs them nothing more than the slot claim.
+	 */
+
+	public void run() {
+
+		StringBuilder line = new StringBuilder(256);
+
+		try {
+			sink = new BufferedWriter(new FileWriter(fileName, true));
+		} catch (IOException e) {
+			System.out.println("Could not open event log " + fileName);
+		}
+
+		while (true) {
+			int written = drain(line);
+
+			if (written == 0) {
+				if (isStopped) {
+					break;
+				}
+				try {
+					if (sink != null) {
+						sink.flush();
+					}
+				} catch (IOException e) {
+					sink = null;
+				}
+				LockSupport.parkNanos(10000000L);
+			}
+		}
+
+		try {
+			if (sink != null) {
+				sink.close();
+			}
+		} catch (IOException e) {
+			System.out.println("Could not close event log " + fileName);
+		}
+	}
+
+
+	/*
+	 * drain writes out every slot which has been published and then hands the slot back
+	 * to the producers.  If the file could not be opened the events are discarded.
+	 *
+	 * Input: a reusable builder for the line
+	 * Output: the number of events removed from the ring
+	 */
+
+	private int drain(StringBuilder line) {
+
+		int count = 0;
+
+		while (sequence.get((int) (head & mask)) == head + 1) {
+			Slot slot = ring[(int) (head & mask)];
+
+			if (sink != null) {
+				format(slot, line);
+				try {
+					sink.append(line);
+				} catch (IOException e) {
+					sink = null;
+				}
+			}
+
+			slot.event = null;
+			slot.subject = null;
+			slot.detail = null;
+			sequence.set((int) (head & mask), head + ring.length);
+			head++;
+			count++;
+		}
+
+		return count;
+	}
+
+
+	/*
+	 * format turns a slot into a single JSON line.
+	 *
+	 * Input: a published slot and the builder to write into
+	 * Output: none
+	 */
+
+	private void format(Slot slot, StringBuilder line) {
+
+		line.setLength(0);
+		line.append("{\"t\":").append(slot.time);
+		line.append(",\"cat\":\"").append(slot.category.name());
+		line.append("\",\"lvl\":\"").append(slot.level.name());
+		line.append("\",\"ev\":");
+		quote(slot.event, line);
+		line.append(",\"id\":");
+		quote(slot.subject, line);
+
+		if (slot.detail != null) {
+			line.append(",\"detail\":");
+			quote(slot.detail, line);
+		}
+
+		if (slot.count > 0) {
+			line.append(",\"n\":[");
+			for (int i = 0; i < slot.count; i++) {
+				if (i > 0) {
+					line.append(',');
+				}
+				line.append(slot.values[i]);
+			}
+			line.append(']');
+		}
+
+		line.append("}\n");
+	}
+
+	private void quote(String s, StringBuilder line) {
+
+		if (s == null) {
+			line.append("null");
+			return;
+		}
+
+		line.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char ch = s.charAt(i);
+
+			if (ch == '"' || ch == '\\') {
+				line.append('\\').append(ch);
+			} else if (ch < ' ') {
+				line.append(' ');
+			} else {
+				line.append(ch);
+			}
+		}
+		line.append('"');
+	}
+
+
+	// Utilities ------------------------------------------------------------------
+
+	private void start() {
+		writer = new Thread(this, "EventLog");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+
+	/*
+	 * stop lets the writer empty the ring and close the file.  It waits at most a
+	 * second so that shutting the server down is never held up by the log.
+	 */
+
+	public void stop() {
+		isStopped = true;
+		LockSupport.unpark(writer);
+
+		try {
+			writer.join(1000L);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	// Getter - Setter ----------------------------------------------------------------
+
+	public void setLevel(Values.Log category, Values.Level level) {
+		Values.Level[] next = levels.clone();
+		next[category.ordinal()] = level;
+		levels = next;
+	}
+
+	public void setAll(Values.Level level) {
+		Values.Level[] next = new Values.Level[Values.Log.values().length];
+		for (int i = 0; i < next.length; i++) {
+			next[i] = level;
+		}
+		levels = next;
+	}
+
+	public Values.Level getLevel(Values.Log category) {
+		return levels[category.ordinal()];
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+}
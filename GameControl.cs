@@ -24,6 +24,10 @@ public class GameControl : MonoBehaviour {
 	public string userID = "user1";
 	private string password;
 	private string sessionID;
+	private string turn = "1"; //the turn the last result was for; sent with each move
+	private string sessionToken;
+	public int retryAfter = 0; //seconds to wait before signing in again when the server is busy
+	private int busyCount = 0;
 	public string otherID;
 	private int timeOut = 1; //minutes
 	public static bool isSignedIn = false;
@@ -68,15 +72,19 @@ public class GameControl : MonoBehaviour {
 		return ss;
 	}
 
+	// The turn goes with the move so the server can tell a move sent too late
+	// for its turn from one for the turn being played.
 	public void MakeMove(string m)
 	{
-		Write(sessionID + "," + m);
+		Write(sessionID + "," + m + "," + turn + ",");
 	}
 
 	public string[] GetResult()
 	{
 		string[] s;
 		s = Read();
+		if (s.Length > 5)
+			turn = s[5];
 
 		return s;
 	}
@@ -88,9 +96,73 @@ public class GameControl : MonoBehaviour {
 		Write(output);
 	}
 
+	// Call every few seconds while in the menus (not during a battle) so the server
+	// knows we are still here.  A client which has sent one is signed out if it goes
+	// quiet for half a minute, rather than after three.
+	public bool Heartbeat()
+	{
+		Write(userID + ",ping,");
+		string[] ss = Read();
+		return ss.Length > 0 && ss[0].Equals("pong");
+	}
+
+	// The shop.  OpenShop returns "shop", our scrap, then "id;type;attack;defend;price"
+	// for each part.  Buy returns "bought", the part and our scrap left, or "fail" and
+	// why.  The key lets a Buy sent again after a lost reply be recognised, so use the
+	// same key for a retry.
+	public string[] OpenShop()
+	{
+		Write(userID + ",store,");
+		return Read();
+	}
+
+	public string[] Buy(string part, string key)
+	{
+		Write(userID + ",buy," + part + "," + key + ",");
+		return Read();
+	}
+
+	public string NewPurchaseKey()
+	{
+		return System.Guid.NewGuid().ToString("N");
+	}
+
+	// Leaderboard entries come back as "rank;user;points".
+	public string[] ReadLeaders(bool aroundMe)
+	{
+		Write(userID + (aroundMe ? ",rank" : ",leaders"));
+		return Read();
+	}
+
+	// Watch a running battle.  Each turn comes as one line (see ReadTurns) until
+	// the battle ends; the server then treats us as idle again.
+	public void Watch(string battle)
+	{
+		Write(userID + ",watch," + battle);
+	}
+
+	public string[] ReadTurns()
+	{
+		byte[] b = new byte[4096];
+		int n = connection.Read(b, 0, b.Length);
+
+		return System.Text.Encoding.UTF8.GetString(b, 0, n).Split(new char[] { '\n' },
+			System.StringSplitOptions.RemoveEmptyEntries);
+	}
+
 	public void StartMatch()
 	{
 		string[] input = Read(); // read other players stats, do something with them...
+		if (input[0].Equals("migrate"))
+		{
+			// The cluster moved us to another server to find an opponent; carry
+			// on there with the token it gave us and wait for the match again.
+			sessionToken = input[3];
+			Redirect(input[1], input[2]);
+			Write("resume," + sessionToken + ",");
+			Read();
+			input = Read();
+		}
 		sessionID = input[0];
 		otherID = input [1];
 
@@ -122,8 +194,32 @@ public class GameControl : MonoBehaviour {
 	{
 		print ("Confirming login.");
 		string[] ss = Read();
+		if (ss[0].Equals("redirect"))
+		{
+			// The gateway of a cluster sends us to one of its servers; sign in there.
+			Redirect(ss[1], ss[2]);
+			Write(userID + "," + password + ",");
+			ss = Read();
+		}
+		if (ss[0].Equals("busy"))
+		{
+			// Wait what the server asks plus up to the same again, doubling each
+			// time in a row we are turned away, up to a minute.
+			int wait;
+			if (!int.TryParse(ss[1], out wait))
+				wait = 5;
+			wait = Mathf.Min(60, wait << Mathf.Min(busyCount, 4));
+			retryAfter = wait + Random.Range(0, wait + 1);
+			busyCount++;
+			return false;
+		}
+		busyCount = 0;
+		retryAfter = 0;
+
 		print ("Setting ss to UpdatedPartList.");
 		UpdatedPartArray = ss;
+		if (ss.Length > 1)
+			sessionToken = ss[1];
 		for (int i = 0; i < UpdatedPartArray.Length; i++) {
 		}
 
@@ -141,6 +237,23 @@ public class GameControl : MonoBehaviour {
 		isSignedIn = true;
 	}
 
+	// Reattach to the session after the connection drops, without signing in again.
+	// Only works within the server's grace period, otherwise use NewSession.
+	public bool Resume()
+	{
+		Connect();
+		Write("resume," + sessionToken + ",");
+		string[] ss = Read();
+		if (ss[0].Equals("redirect"))
+		{
+			Redirect(ss[1], ss[2]);
+			Write("resume," + sessionToken + ",");
+			ss = Read();
+		}
+
+		return ss[0].Equals("resumed");
+	}
+
 	public void NewSession()
 	{
 		KillSession();// kill the old session
@@ -176,6 +289,17 @@ public class GameControl : MonoBehaviour {
 	}
 
 
+	// Drop the current connection and connect to another server instead.
+	public void Redirect(string host, string to)
+	{
+		connection.Close();
+		client.Close();
+		ip = host;
+		port = int.Parse(to);
+		Connect();
+	}
+
+
 	// IO Methods ---------------------------------------------
 
 	public string[] Read()
@@ -13,9 +13,13 @@
 
 package servers;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 public class GameManager implements Runnable {
 	
@@ -25,6 +29,10 @@ public class GameManager implements Runnable {
 	private Lists lists;
 	private Thread runningThread = null;
 	private Timer timer;
+	private Admission admission;
+	private Timer configTimer;
+	private long lastSessionID = 0;
+	private List<Lists.Entry> pass = new ArrayList<Lists.Entry>();
 
 	//Constructor
 	public GameManager( BlockingQueue<Client> blockingQueue ) {
@@ -32,7 +40,9 @@ public class GameManager implements Runnable {
 		clients = blockingQueue;
 		tg = new ThreadGroup("Battle");
 		lists = Lists.getLists();
-		timer = new Timer(15);
+		timer = new Timer();
+		configTimer = new Timer();
+		admission = Admission.getAdmission();
 	}
 
 	
@@ -43,15 +53,16 @@ public class GameManager implements Runnable {
 	 *   
 	 * 1. The method fillLoggedInList is called.  This function will move clients from 
 	 * the blocking queue being populated by the Listener class.  If there are no new
-	 * clients in the queue this action will not be taken.  Note: it can be adjusted so
-	 * that only a minimum number will be taken at one time, since this is a prototype 
-	 * low traffic is assumed
+	 * clients in the queue it waits briefly for one, which keeps this loop from spinning.
+	 * How many clients may sign in is decided by Admission in the Listener, so there is
+	 * no limit here.
 	 * 
 	 * 2. The method makeQuickMatch is invoked to use the current list of clients waiting 
 	 * to be assigned a match to pair them off into battles and start a thread to facilitate
 	 * communication between them.  This method is invoked every 15 s so that players can pool
 	 * which will facilitate ranking in a better way. Note: this is the implementation of just 
 	 * one game lobby, others can be brought in by using the same scheme (another if statement).
+	 * Only as many battles as Admission allows are started; the rest stay in the queue.
 	 * 
 	 * no input/output
 	 */
@@ -66,24 +77,21 @@ public class GameManager implements Runnable {
 		while (!isStopped) {
 			try {
 
-				if ((tg.activeCount() < 101) && (lists.idle.size() < 101)) {
-					if (!clients.isEmpty()) {
+				fillLoggedInList();
 
-						fillLoggedInList();
-					}
-
-					if (timer.waitedLongEnough()) {
-						makeQuickMatch();
-						timer.start();
-					}
+				if (configTimer.waitedLongerThan(1)) {
+					Config.reloadIfChanged();
+					configTimer.start();
+				}
 
-				} else {
-					Thread.sleep(1000L);
+				if (timer.waitedLongerThan(Config.get().matchInterval) && !lists.isDraining()) {
+					makeQuickMatch();
+					timer.start();
 				}
+
 			} catch (Exception e) {
-				if (!Values.debug) {
-					System.out.println("failure in Game Manager Loop");
-				}
+				EventLog.getEventLog().log(Values.Log.match, Values.Level.error,
+						"loop failed", null, e.toString());
 			}
 		}
 
@@ -93,33 +101,100 @@ public class GameManager implements Runnable {
 	
 	/*
 	 * The purpose of makeQuickMatch is to assign clients from the waitingQuick queue to
-	 * a battle.  lock, unlock are called to prevent the list from becoming corrupted.  lock
-	 * forces the clients in the list to stay in the list until unlock is called.  Clients
-	 * are sorted here before being assigned.  The matches are between closest ranked players
+	 * a battle.  The queue is not locked.  The entries in it are taken off into a list of
+	 * their own, closed ones are dropped, and the open ones are sorted by rating so the
+	 * matches are between closest ranked players.  A pair is made by taking both entries
+	 * (see Lists.Entry); a player who left or signed out in the meantime is skipped and
+	 * the next one is paired instead.  If a battle cannot be made, the players still
+	 * signed in are given back.  Entries not used, the odd man out or those over the
+	 * limit of battles, go back on the queue, even if the pass fails part way.  Players
+	 * may join and leave the whole time.
 	 * 
 	 * no input or output
 	 */
 	
 	private void makeQuickMatch() {
 		
-		Client c1 = null;
-		Client c2 = null;
+		Lists.Entry first = null;
+		Lists.Entry e;
+		int pool = 0;
+		int limit = 0;
+		int made = 0;
+		ServerEvents.QuickMatch event = ServerEvents.QuickMatch.start();
 
-		lock();
-
-		if (lists.waitingQuick.size() > 1) {
-			int limit = lists.waitingQuick.size() / 2;
-			Collections.sort(lists.waitingQuick);
-
-			for (int i = 0; i < limit; i++) {
-				c1 = lists.waitingQuick.remove(0);
-				c2 = lists.waitingQuick.remove(0);
+		while ((e = lists.waitingQuick.poll()) != null) {
+			if (e.isOpen()) {
+				e.passed();
+				pass.add(e);
+			}
+		}
 
-				makeBattle(c1, c2);
+		pool = pass.size();
+		try {
+			if (pool > 1) {
+				limit = Math.min(pool / 2, admission.battleSlots());
+				
+				if (limit < pool / 2) {
+					EventLog.getEventLog().log(Values.Log.match, Values.Level.info,
+							"capacity", null, pool / 2, limit);
+				}
+				Collections.sort(pass, byRating);
+	
+				for (int i = 0; i < pass.size() && made < limit; i++) {
+					e = pass.get(i);
+					pass.set(i, null);
+	
+					if (!e.take()) {
+						continue;
+					}
+					if (e.client.getService() == null) { // signed out, the entry is let go
+						continue;
+					}
+					if (first == null) {
+						first = e;
+						continue;
+					}
+					
+					try {
+						makeBattle(first.client, e.client, null);
+						made++;
+					} catch (Exception x) {
+						EventLog.getEventLog().log(Values.Log.match, Values.Level.error,
+								"battle not made", null, x.toString());
+						giveBack(e);
+						giveBack(first);
+					}
+					first = null;
+				}
+			}
+		} finally {
+			if (first != null) {
+				giveBack(first);
+			}
+			for (Lists.Entry left : pass) {
+				if (left != null && left.isOpen()) {
+					lists.waitingQuick.add(left);
+				}
 			}
+			pass.clear();
+			event.end(pool, made);
 		}
+	}
 
-		unlock();
+	
+	/*
+	 * giveBack reopens a taken entry and puts it back on the queue, unless its player
+	 * has signed out.
+	 * 
+	 * Input: the entry
+	 * Output: none
+	 */
+	
+	private void giveBack(Lists.Entry e) {
+		if (e.client.getService() != null) {
+			e.give();
+			lists.waitingQuick.add(e);
+		}
 	}
 
 	
@@ -128,19 +203,34 @@ public class GameManager implements Runnable {
 	 * of Battle and then start the thread.  Also, their current queue location is 
 	 * updated by placing the Battle instance into the list of battles.
 	 * 
-	 * Input: 2 Client objects
-	 * Output: none
+	 * The battle's session id is the thread name, taken from the clock.  Battles started
+	 * within the same millisecond, as a tournament does, are given the following numbers.
+	 * 
+	 * Input: 2 Client objects, and the tournament the battle is part of, if any
+	 * Output: the battle
 	 */
 	
-	private void makeBattle(Client c1, Client c2) {
-		Battle b = new Battle(c1, c2);
+	public Battle makeBattle(Client c1, Client c2, Tournament t) {
+		Service s1 = c1.getService();
+		Service s2 = c2.getService();
 
-		c1.getService().setCurrentBattle(b);
-		c2.getService().setCurrentBattle(b);
+		if (s1 == null || s2 == null) {
+			throw new IllegalStateException("player signed out");
+		}
+		Battle b = new Battle(c1, c2, t);
+
+		s1.setCurrentBattle(b);
+		s2.setCurrentBattle(b);
 
 		lists.activeBattles.add(b);
 
-		new Thread(tg, b, "" + System.currentTimeMillis()).start();
+		new Thread(tg, b, nextSessionID()).start();
+		return b;
+	}
+	
+	private synchronized String nextSessionID() {
+		lastSessionID = Math.max(lastSessionID + 1, System.currentTimeMillis());
+		return "" + lastSessionID;
 	}
 
 	
@@ -154,44 +244,26 @@ public class GameManager implements Runnable {
 	 */
 	private void fillLoggedInList() throws Exception {
 		int i = 0;
+		int batch = Config.get().loginBatch;
+		Client c = clients.poll(100L, TimeUnit.MILLISECONDS);
 
-		while (i++ < 10 && !clients.isEmpty()) {
-			Client c = clients.take();
+		while (c != null) {
 			new Thread(c.getService()).start();
-			lists.idle.add(c);
+			lists.addIdle(c);
+			c = (++i < batch) ? clients.poll() : null;
 		}
 	}
 
 	
 	/*
-	 * The following 2 methods, lock and unlock, are used to preserve the integrity of the 
-	 * waiting list.
-	 * 
-	 * Since clients can move between lists while they logged in, they must be kept from
-	 * leaving or being timed out when inserting them into a battle.  If they are inserted
-	 * a null reference will be made inside the battle and an error will be generated.
-	 * This is done by changing the moveable flag inside the client class.  This flag also
-	 * influences the priority so that if clients come into the queue after lock has been 
-	 * called they are pushed to the end of the queue.  Since there is a limit of the number
-	 * of clients being assigned the lowest priority, or odd man out, will not be assigned 
-	 * 
-	 *  no input or output
-	 *  
-	 *  ----------------------------------------------------------------------------------
+	 * byRating orders the entries of a quick match pass by their player's rating.
 	 */
 	
-	private void lock() {
-		for (Client c : lists.waitingQuick)
-			c.stayPut();
-	}
-
-	private void unlock() {
-		for (Client c : lists.waitingQuick) {
-			c.moveFreely();
+	private static final Comparator<Lists.Entry> byRating = new Comparator<Lists.Entry>() {
+		public int compare(Lists.Entry a, Lists.Entry b) {
+			return Integer.compare(a.client.getRating(), b.client.getRating());
 		}
-	}
-
-	// end lock/unlock -------------------------------------------------------------------
+	};
 	
 	
 	/*
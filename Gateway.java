@@ -0,0 +1,423 @@
+/*
+ * Gateway is the front door when the server is run as a cluster of nodes.  It has its own
+ * main method and is started on its own, before the nodes:
+ *
+ * 		java servers.Gateway [client port] [control port] [settings file]
+ *
+ * Each node is a normal server with clusterGateway set to the gateway's control port (see
+ * Config and Cluster).  Players connect to the client port and send their first message
+ * as usual.  The gateway does not serve them; it answers
+ *
+ * 		redirect,<host>,<port>,
+ *
+ * and the player connects to that node and sends the same message again.  A sign in goes to
+ * the node the player was last sent to if it is still up, otherwise to the node with the
+ * fewest sessions.  A resume goes to the node named at the front of the token.  If there
+ * are no nodes the player is sent busy, as the nodes do when they are full.
+ *
+ * The nodes report their load every second.  When two nodes each have an odd number of
+ * players waiting for a quick match, one player would be left over on each, so the gateway
+ * asks one node to hand a player to the other.  A node is not asked again for
+ * migrateCooldown seconds, so a hand-off can finish before the next report is acted on.
+ *
+ * The first message is read by a few gateway threads, not the one accepting, and a player
+ * has gatewayHandshake milliseconds to send it, so a player who says nothing holds up no
+ * one else.  Only the last gatewayAffinity players routed are remembered.
+ */
+
+package servers;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class Gateway implements Runnable {
+
+	private int 					clientPort;
+	private int 					controlPort;
+	private boolean 				isStopped = false;
+	private ServerSocket 			clientSocket;
+	private ServerSocket 			controlSocket;
+	private Map<Integer, Node> 		nodes;
+	private Map<String, Integer> 	affinity;
+	private BlockingQueue<Socket> 	arrivals;
+	private int 					nextID = 1;
+
+	public Gateway(int clientPort, int controlPort) {
+		this.clientPort = clientPort;
+		this.controlPort = controlPort;
+		nodes = new ConcurrentHashMap<Integer, Node>();
+		arrivals = new ArrayBlockingQueue<Socket>(Config.get().acceptQueue);
+		affinity = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+				return size() > Config.get().gatewayAffinity;
+			}
+		};
+	}
+
+	public static void main(String[] args) {
+
+		try {
+			Config.load((args.length > 2) ? args[2] : Values.configFile);
+		} catch (Exception e) {
+			System.out.println("Could not read settings: " + e.getMessage());
+			return;
+		}
+
+		int client = (args.length > 0) ? Integer.parseInt(args[0]) : Config.get().gatewayPort;
+		int control = (args.length > 1) ? Integer.parseInt(args[1]) : Config.get().controlPort;
+
+		new Gateway(client, control).run();
+	}
+
+
+	/*
+	 * run opens both ports.  Nodes are taken on by their own thread.  Player
+	 * connections are passed to the routing threads; if they are that far behind the
+	 * connection is closed and the player tries again.
+	 */
+
+	public void run() {
+
+		clientSocket = open(clientPort);
+		controlSocket = open(controlPort);
+
+		new Thread(new Runnable() {
+			public void run() {
+				acceptNodes();
+			}
+		}, "GatewayControl").start();
+
+		for (int i = 0; i < Config.get().gatewayWorkers; i++) {
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					routeArrivals();
+				}
+			}, "GatewayRoute");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		System.out.println("Gateway on " + clientPort + ", nodes on " + controlPort);
+
+		while (!isStopped) {
+			try {
+				Socket s = clientSocket.accept();
+
+				if (!arrivals.offer(s)) {
+					s.close();
+				}
+			} catch (IOException e) {
+				if (isStopped) {
+					return;
+				}
+			}
+		}
+	}
+
+
+	private void routeArrivals() {
+
+		while (!isStopped) {
+			try {
+				route(arrivals.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+
+	/*
+	 * route reads a player's first message and sends them to a node.
+	 *
+	 * Input: the player's socket
+	 * Output: none
+	 */
+
+	private void route(Socket s) {
+
+		Comms comms = null;
+
+		try {
+			comms = new Comms(s);
+			comms.setReadTimeOut(Config.get().gatewayHandshake);
+			String[] hello = comms.read();
+			Node node;
+
+			if (hello[0].trim().equals("resume")) {
+				node = forToken(hello[1].trim());
+			} else {
+				node = forUser(hello[0].trim());
+			}
+
+			if (node != null) {
+				comms.write("redirect," + node.host + "," + node.port + ",");
+			} else if (hello[0].trim().equals("resume")) {
+				comms.write("fail,");
+			} else {
+				comms.write("busy," + Config.get().retryAfter + ",");
+			}
+		} catch (Exception e) {
+		}
+
+		try {
+			if (comms != null) {
+				comms.closeConnection();
+			} else {
+				s.close();
+			}
+		} catch (Exception e) {
+		}
+	}
+
+	private Node forToken(String token) {
+
+		int dot = token.indexOf('.');
+
+		if (dot < 1) {
+			return null;
+		}
+
+		try {
+			return nodes.get(Integer.valueOf(token.substring(0, dot)));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private synchronized Node forUser(String user) {
+
+		Integer last = affinity.get(user);
+
+		if (last != null && nodes.containsKey(last)) {
+			return nodes.get(last);
+		}
+
+		Node best = null;
+		for (Node n : nodes.values()) {
+			if (best == null || n.sessions + n.routed < best.sessions + best.routed) {
+				best = n;
+			}
+		}
+
+		if (best != null) {
+			best.routed++;
+			affinity.put(user, best.id);
+		}
+		return best;
+	}
+
+
+	/*
+	 * acceptNodes takes on each node that connects to the control port and starts a
+	 * thread to read its messages.
+	 */
+
+	private void acceptNodes() {
+
+		while (!isStopped) {
+			try {
+				final Socket s = controlSocket.accept();
+
+				new Thread(new Runnable() {
+					public void run() {
+						serve(s);
+					}
+				}, "GatewayNode").start();
+			} catch (IOException e) {
+				if (isStopped) {
+					return;
+				}
+			}
+		}
+	}
+
+
+	/*
+	 * serve reads one node's messages until it disconnects (see Cluster for the
+	 * messages).  Hand-off messages are passed on to the node they name, with the
+	 * node id swapped for the sender's so the answer can find its way back.
+	 *
+	 * Input: the node's socket
+	 * Output: none
+	 */
+
+	private void serve(Socket s) {
+
+		Node node = null;
+
+		try {
+			s.setTcpNoDelay(true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+			PrintWriter out = new PrintWriter(s.getOutputStream(), true);
+			String line;
+
+			while ((line = in.readLine()) != null) {
+				String[] m = line.split(",", 3);
+
+				switch (m[0]) {
+
+				case "node":
+					String[] hp = m[2].split(",");
+					node = register(m[1], Integer.parseInt(hp[0]), out);
+					break;
+
+				case "load":
+					String[] load = line.split(",");
+					node.report(Integer.parseInt(load[1]), Integer.parseInt(load[2]),
+							Integer.parseInt(load[3]));
+					balance();
+					break;
+
+				case "handoff":
+					forward(m[1], "handoff," + node.id + "," + m[2]);
+					break;
+
+				case "accepted":
+				case "rejected":
+					forward(m[1], m[0] + "," + m[2]);
+					break;
+
+				default:
+					break;
+				}
+			}
+		} catch (Exception e) {
+		}
+
+		if (node != null) {
+			nodes.remove(node.id);
+			System.out.println("Node " + node.id + " left");
+		}
+
+		try {
+			s.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private synchronized Node register(String host, int port, PrintWriter out) {
+
+		Node node = new Node(nextID++, host, port, out);
+
+		nodes.put(node.id, node);
+		node.send("welcome," + node.id);
+		System.out.println("Node " + node.id + " at " + host + ":" + port);
+		return node;
+	}
+
+	private void forward(String to, String line) {
+
+		Node node = nodes.get(Integer.valueOf(to));
+
+		if (node != null) {
+			node.send(line);
+		}
+	}
+
+
+	/*
+	 * balance pairs up nodes which each have one player left over in their quick
+	 * match queue, and asks the first of each pair to hand its player to the second.
+	 */
+
+	private synchronized void balance() {
+
+		Config.reloadIfChanged();
+
+		long now = System.currentTimeMillis();
+		long cooldown = Config.get().migrateCooldown * 1000L;
+		List<Node> odd = new ArrayList<Node>();
+
+		for (Node n : nodes.values()) {
+			if (n.waiting % 2 == 1 && now - n.lastMigrate > cooldown) {
+				odd.add(n);
+			}
+		}
+
+		for (int i = 0; i + 1 < odd.size(); i += 2) {
+			Node from = odd.get(i);
+			Node to = odd.get(i + 1);
+
+			from.lastMigrate = now;
+			to.lastMigrate = now;
+			from.send("migrate," + to.id);
+		}
+	}
+
+
+	// Utilities ------------------------------------------------------------------
+
+	private ServerSocket open(int port) {
+		try {
+			ServerSocket ss = ServerSocketChannel.open().socket();
+			ss.setReuseAddress(true);
+			ss.bind(new InetSocketAddress(port));
+			return ss;
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot open port " + port, e);
+		}
+	}
+
+	public synchronized void stop() {
+		isStopped = true;
+		try {
+			clientSocket.close();
+			controlSocket.close();
+		} catch (IOException e) {
+		}
+	}
+
+
+	/*
+	 * Node is what the gateway knows about one server node.  routed counts the players
+	 * sent to it since its last report, so a burst of sign ins is spread out before the
+	 * node has had a chance to report them.
+	 */
+
+	private static class Node {
+
+		final int 			id;
+		final String 		host;
+		final int 			port;
+		final PrintWriter 	out;
+		volatile int 		sessions = 0;
+		volatile int 		battles = 0;
+		volatile int 		waiting = 0;
+		volatile int 		routed = 0;
+		long 				lastMigrate = 0;
+
+		Node(int id, String host, int port, PrintWriter out) {
+			this.id = id;
+			this.host = host;
+			this.port = port;
+			this.out = out;
+		}
+
+		void report(int sessions, int battles, int waiting) {
+			this.sessions = sessions;
+			this.battles = battles;
+			this.waiting = waiting;
+			routed = 0;
+		}
+
+		synchronized void send(String line) {
+			out.println(line);
+		}
+	}
+}
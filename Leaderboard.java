@@ -0,0 +1,182 @@
+/*
+ * Leaderboard ranks every player by points.  It is kept in memory in a RankIndex and updated
+ * as players sign in and as battle results are recorded, so it never has to be worked out
+ * from the Database.  Clients can ask for the top players or for their own rank and the
+ * players either side of them:
+ *
+ * 		<user>,leaders		-> rank;user;points,rank;user;points,...
+ * 		<user>,rank			-> the same, for the players around them
+ *
+ * Every leaderboardCheckpoint seconds, if anything has changed, the board is written to the
+ * leaderboardFile (see Config), and it is read back from there when the server starts.  The
+ * Database is only scanned to build the board when there is no file yet.  The singleton
+ * pattern is used so there is one board.
+ */
+
+package servers;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+public class Leaderboard implements Runnable {
+
+	private static Leaderboard 		leaderboard;
+	private RankIndex<Object> 		index;
+	private volatile boolean 		dirty = false;
+	private String 					fileName;
+
+	public static synchronized Leaderboard getLeaderboard() {
+		if (leaderboard == null) {
+			leaderboard = new Leaderboard(Config.get().leaderboardFile);
+			leaderboard.load();
+
+			Thread t = new Thread(leaderboard, "Leaderboard");
+			t.setDaemon(true);
+			t.start();
+		}
+		return leaderboard;
+	}
+
+	private Leaderboard(String file) {
+		index = new RankIndex<Object>();
+		fileName = file;
+	}
+
+
+	/*
+	 * update records a player's current points.
+	 *
+	 * Input: the user name and their points
+	 * Output: none
+	 */
+
+	public void update(String userID, int points) {
+		index.put(userID, points, null);
+		dirty = true;
+	}
+
+
+	/*
+	 * top and around build the replies for the leaders and rank commands.
+	 *
+	 * Input: how many players, and for around the player at the centre
+	 * Output: a csv string of rank;user;points entries
+	 */
+
+	public String top(int count) {
+		StringBuilder sb = new StringBuilder();
+		index.read(1, count, sb);
+		return sb.toString();
+	}
+
+	public String around(String userID, int either) {
+		StringBuilder sb = new StringBuilder();
+		int rank = index.rank(userID);
+
+		if (rank > 0) {
+			index.read(rank - either, 2 * either + 1, sb);
+		}
+		return sb.toString();
+	}
+
+	public int rank(String userID) {
+		return index.rank(userID);
+	}
+
+
+	/*
+	 * run writes a checkpoint whenever the board has changed, at most every
+	 * leaderboardCheckpoint seconds.
+	 */
+
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(Config.get().leaderboardCheckpoint * 1000L);
+				checkpoint();
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+
+	/*
+	 * checkpoint writes the board to a temporary file and then moves it over the old
+	 * one, so a crash part way through leaves the last checkpoint whole.
+	 */
+
+	public synchronized void checkpoint() {
+
+		if (!dirty) {
+			return;
+		}
+		dirty = false;
+
+		StringBuilder sb = new StringBuilder();
+		index.read(1, index.size(), sb);
+
+		File tmp = new File(fileName + ".tmp");
+		try {
+			BufferedWriter out = new BufferedWriter(new FileWriter(tmp));
+			try {
+				out.write(sb.toString().replace(',', '\n'));
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(new File(fileName))) {
+				throw new IOException("Cannot replace " + fileName);
+			}
+		} catch (IOException e) {
+			dirty = true;
+			EventLog.getEventLog().log(Values.Log.server, Values.Level.error,
+					"leaderboard checkpoint failed", fileName, e.toString());
+		}
+	}
+
+
+	// Utilities ------------------------------------------------------------------
+
+	private void load() {
+
+		File f = new File(fileName);
+
+		try {
+			if (f.exists()) {
+				BufferedReader in = new BufferedReader(new FileReader(f));
+				try {
+					String line;
+					while ((line = in.readLine()) != null) {
+						String[] entry = line.split(";");
+						if (entry.length == 3) {
+							index.put(entry[1], Integer.parseInt(entry[2]), null);
+						}
+					}
+				} finally {
+					in.close();
+				}
+			} else {
+				DBCursor cursor = Database.getDatabase().getAllUsers();
+				while (cursor.hasNext()) {
+					DBObject user = cursor.next();
+					index.put((String) user.get("user"), Client.pointsOf(user), null);
+				}
+				dirty = true;
+			}
+		} catch (Exception e) {
+			EventLog.getEventLog().log(Values.Log.server, Values.Level.error,
+					"leaderboard load failed", fileName, e.toString());
+		}
+	}
+
+	public int size() {
+		return index.size();
+	}
+}
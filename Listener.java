@@ -5,37 +5,58 @@
  * here because serverSocket.accept is blocking.  Matches can be made and played with existing
  * clients while this thread sleeps.  
  * 
- * Note: the port 6789 is used arbitrarily for the testing of this application.
+ * Note: the port 6789 is used arbitrarily for the testing of this application.  It can be
+ * changed with the port setting (see Config).
+ * 
+ * The first message of each connection is read by handshakeWorkers threads, not the one
+ * accepting, and a client has handshakeTimeOut seconds to send it (see Config), so a client
+ * which connects and says nothing holds up no one else.  If the workers are a whole accept
+ * queue behind, new connections are closed and the clients try again.
+ * 
+ * The port is opened with SO_REUSEPORT where the platform supports it.  This lets a new
+ * version of the server bind the same port while this one drains, so that there is no
+ * window in which connections are refused during a restart.
  */
 
 package servers;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 
 public class Listener implements Runnable {
 	
 	private BlockingQueue<Client> 	clients = null;
+	private BlockingQueue<Socket> 	arrivals = null;
 	private int 					serverPort = 6789;
 	private boolean 				isStopped = false;
 	private ServerSocket			serverSocket = null;
-	private Client 					c = null;	
 	private Thread 					runningThread = null;
+	private Sessions 				sessions = null;
+	private Admission 				admission = null;
 
 	public Listener(int port, BlockingQueue<Client> blockingQueue) {
 		serverPort = port;
 		clients = blockingQueue;
+		sessions = Sessions.getSessions();
+		admission = Admission.getAdmission();
+		arrivals = new ArrayBlockingQueue<Socket>(Config.get().acceptQueue);
 	}
 
 	
 	/*
 	 * run is the implementation of the Runnable interface.  This methods waits for socket
 	 * clients and awakes when there is a request made.  When a request is made a client
-	 * object is instantiated and placed in the blocking queue if there is less than the 
-	 * limit.  The limit is imposed so the server does not have memory overflow issues.  If
-	 * the limit is reached the socket is closed.
+	 * object is instantiated and placed in the blocking queue if the server has room for
+	 * it.  If Admission says the server is overloaded the client is sent a busy message
+	 * telling it how long to wait before trying again, rather than having the socket
+	 * closed on it.  If the first message is a resume token instead of a user name, the
+	 * socket is handed to the parked session instead (see Sessions).
 	 */
 	
 	public void run() {
@@ -46,6 +67,16 @@ public class Listener implements Runnable {
 		System.out.println("Server Thread Running...");
 		openServerSocket();
 
+		for (int i = 0; i < Config.get().handshakeWorkers; i++) {
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					greetArrivals();
+				}
+			}, "Handshake");
+			t.setDaemon(true);
+			t.start();
+		}
+
 		while (!isStopped()) {
 			
 			Socket clientSocket = null;
@@ -63,20 +94,8 @@ public class Listener implements Runnable {
 				throw new RuntimeException("Error accepting client connection", e);
 			}
 
-			try {
-				
-				if (clients.size() < 101){
-					c = new Client(clientSocket);
-					clients.add(c);
-				}else{
-					clientSocket.close();
-				}
-			
-			} catch (Exception e) {
-				
-				if (Values.debug) {
-					System.out.println("Failed to accept client");
-				}
+			if (!arrivals.offer(clientSocket)) {
+				close(null, clientSocket);
 			}
 		} // end while
 
@@ -84,6 +103,62 @@ public class Listener implements Runnable {
 		
 	} //end run
 
+	private void greetArrivals() {
+		while (!isStopped()) {
+			try {
+				greet(arrivals.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	
+	/*
+	 * greet takes on one connection: it reads the first message, with the handshake
+	 * time out, and signs the client in or resumes their session.  Only a sign in is
+	 * checked with Admission, so a player can always get back to their battle.
+	 * 
+	 * Input: the client's socket
+	 * Output: none
+	 */
+	
+	private void greet(Socket clientSocket) {
+		
+		Comms comms = null;
+		try {
+			
+			comms = new Comms(clientSocket);
+			comms.setReadTimeOut(Config.get().handshakeTimeOut * 1000L);
+			String[] hello = comms.read();
+			comms.setReadTimeOut(Config.get().defaultTimeOut * 1000L);
+
+			if (hello[0].trim().equals("resume")) {
+				if (!sessions.resume(hello[1].trim(), comms)) {
+					comms.write("fail,");
+					comms.closeConnection();
+				}
+				return;
+			}
+
+			int wait = admission.retryAfter(clients.size());
+
+			if (wait > 0) {
+				comms.write("busy," + wait + ",");
+				comms.closeConnection();
+				return;
+			}
+			clients.add(new Client(comms, hello));
+		
+		} catch (Exception e) {
+			
+			if (Values.debug) {
+				System.out.println("Failed to accept client");
+			}
+			close(comms, clientSocket);
+		}
+	}
+
 
 	/*
 	 * This method is used to stop the main loop in the run method.
@@ -103,16 +178,41 @@ public class Listener implements Runnable {
 	
 	/*
 	 * openServerSocket is used to instantiate a socket object.  If there is a 
-	 * failure to create the socket object an exception is thron
+	 * failure to create the socket object an exception is thron.  The socket is 
+	 * opened through a channel so that Comms can write to clients from direct buffers.
 	 * 
 	 * no input/output
 	 */
 	
 	private void openServerSocket() {
 		try {
-			serverSocket = new ServerSocket(serverPort);
+			serverSocket = ServerSocketChannel.open().socket();
+			serverSocket.setReuseAddress(true);
+
+			if (serverSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+				serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			}
+
+			serverSocket.bind(new InetSocketAddress(serverPort));
 		} catch (IOException e) {
-			throw new RuntimeException("Cannot open port 6789", e);
+			throw new RuntimeException("Cannot open port " + serverPort, e);
+		}
+	}
+	
+	
+	/*
+	 * close lets go of a connection which could not be taken on, and the slab its
+	 * Comms leased.
+	 */
+	
+	private void close(Comms comms, Socket s) {
+		try {
+			if (comms != null) {
+				comms.closeConnection();
+			} else {
+				s.close();
+			}
+		} catch (Exception e) {
 		}
 	}
 	
@@ -3,6 +3,11 @@
  * This class is also used in many places so access must be synchronized as well
  * as limited.  The singleton pattern is employed here so there is only one 
  * instance of the class and one set of lists. 
+ *
+ * The quick match queue is not a locked list.  Each time a player joins it they are given
+ * an Entry, and whether they are taken for a match or leave the queue is settled by one
+ * compare and set on its state.  Entries which are no longer open are dropped by the next
+ * pass of the GameManager rather than searched for.
  */
 
 package servers;
@@ -10,22 +15,28 @@ package servers;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Lists {
 	public static Lists lists;
 	public List<Battle> activeBattles;
 	public List<Client> idle;
 	public List<Client> waiting;
-	public List<Client> waitingQuick;
+	public Queue<Entry> waitingQuick;
 	public List<Client> map;
+	private RankIndex<Client> idleIndex;
+	private volatile boolean draining = false;
 
 	private Lists() {
 
 		map = Collections.synchronizedList(new ArrayList<Client>());
 		idle = Collections.synchronizedList(new ArrayList<Client>());
 		waiting = Collections.synchronizedList(new ArrayList<Client>());
-		waitingQuick = Collections.synchronizedList(new ArrayList<Client>());
+		waitingQuick = new ConcurrentLinkedQueue<Entry>();
 		activeBattles = Collections.synchronizedList(new ArrayList<Battle>());
+		idleIndex = new RankIndex<Client>();
 	}
 
 	public static Lists getLists() {
@@ -71,11 +82,11 @@ public class Lists {
 			waiting.clear();
 		}
 
-		if (waitingQuick.size() > 0) {
-			for (Client c : waitingQuick) {
-				c.getService().stop();
+		Entry e;
+		while ((e = waitingQuick.poll()) != null) {
+			if (e.leave()) {
+				e.client.getService().stop();
 			}
-			waitingQuick.clear();
 		}
 
 		if (idle.size() > 0) {
@@ -84,11 +95,30 @@ public class Lists {
 			}
 			idle.clear();
 		}
+		idleIndex = new RankIndex<Client>();
 
 		map.clear();
 	}
 
 	
+	/*
+	 * drain puts the server into drain mode.  No new matches are made, clients waiting
+	 * for a match are returned to idle, and idle clients are sent a reconnect hint and
+	 * signed out by their own service thread.  Battles already running are left to
+	 * finish, after which their players are signed out the same way.
+	 * 
+	 * no input/output
+	 */
+	
+	public void drain() {
+		draining = true;
+	}
+	
+	public boolean isDraining() {
+		return draining;
+	}
+
+	
 	/*
 	 * The jump method is used by a client to place themselves into the waiting for a
 	 * match queue
@@ -105,60 +135,157 @@ public class Lists {
 			}
 		}
 
-		idle.remove(c);
+		removeIdle(c);
 	}
 
 	
-	// Same as above, but for the unordered first come first serve match type. No ranking
+	// Same as above, but for the quick match queue.  The player is given a new entry
 	
-	public synchronized void jumpQuick(Client c) {
-		waitingQuick.add(c);
-		idle.remove(c);
+	public void jumpQuick(Client c) {
+		enqueue(c);
+		removeIdle(c);
 	}
 
 	
 	/*
 	 * This method allows a client to remove themselves from the list waiting.  This means 
-	 * they are still in a position to opt out of facing off in a battle.
+	 * they are still in a position to opt out of facing off in a battle.  A player in the
+	 * quick match queue has left only if their entry was still open; if it has been taken
+	 * for a match they stay for the battle.  The entry is only looked at for a player in
+	 * the quick match queue.  A player held by a tournament stays put.
 	 * 
 	 * Input: a client object
-	 * Output: none 
+	 * Output: boolean, true if the client is back in idle
 	 */
-	public synchronized void jumpBack(Client c) {
+	public boolean jumpBack(Client c) {
+		
+		if (!c.isMoveable()) {
+			return false;
+		}
 		
-		if(c.isMoveable()){
-			waitingQuick.remove(c);
-			idle.add(c);
+		Entry e = c.getEntry();
+		if (c.getCurrentStatus() == Values.States.waitingQuick && e != null && !e.leave()) {
+			return false;
 		}
+		addIdle(c);
+		return true;
 	}
 
 	
 	/*
-	 * getClosestOpponents 
+	 * claimWaiting is used by Cluster to take a player out of the quick match queue so
+	 * they can be handed to another node.  Only a player whose entry is open and who is
+	 * still connected is taken.  returnWaiting puts them back if the hand-off is refused.
 	 * 
-	 * Input: a client object
-	 * Output: returns a csv string with the  closest opponents to the client object 
+	 * Input: returnWaiting takes the client
+	 * Output: claimWaiting returns the client, or null if no one could be taken
 	 */
 	
-	public String getClosestOpponents(Client c) {
-		
-		String returnString = "";
-		List<Client> list = new ArrayList<Client>();
+	public Client claimWaiting() {
+		for (Entry e : waitingQuick) {
+			if (!e.client.isParked() && e.take()) {
+				waitingQuick.remove(e);
+				return e.client;
+			}
+		}
+		return null;
+	}
+	
+	public void returnWaiting(Client c) {
+		enqueue(c);
+	}
 
-		if (idle.size() < 10) {
-			list.addAll(idle);
-		} else {
-			list.addAll(idle.subList(0, 9));
-			if (!list.contains(c)) {
-				list.remove(0);
-				list.add(c);
+	
+	/*
+	 * enqueue gives a client a new entry in the quick match queue.  An older entry of
+	 * theirs still in the queue has been taken or left, and is dropped by the next pass.
+	 * A player handed over by another node (see Cluster) is not timed out of the queue
+	 * until a match pass has had a chance to pair them; mayTimeOut says whether that has
+	 * happened.  quickWaiting counts the open entries.
+	 */
+	
+	public void enqueue(Client c) {
+		enqueue(c, false);
+	}
+	
+	public void enqueue(Client c, boolean handedOver) {
+		Entry e = new Entry(c, handedOver);
+		c.setEntry(e);
+		waitingQuick.add(e);
+	}
+	
+	public boolean mayTimeOut(Client c) {
+		Entry e = c.getEntry();
+		return e == null || !e.handedOver || e.passed;
+	}
+	
+	public int quickWaiting() {
+		int n = 0;
+		for (Entry e : waitingQuick) {
+			if (e.isOpen()) {
+				n++;
 			}
 		}
+		return n;
+	}
+
+	
+	/*
+	 * The idle players are also kept in a RankIndex by rating, so the players nearest
+	 * a client can be found without going through the whole list.  addIdle and
+	 * removeIdle keep the two in step, and reindexIdle is called when an idle
+	 * player's rating changes.  Adding a player who is already idle does nothing.
+	 * Each is done under the Lists lock, so the list and the index cannot be seen
+	 * to disagree.
+	 * 
+	 * Input: a client object
+	 * Output: none
+	 */
+	
+	public synchronized void addIdle(Client c) {
+		if (c.getUserID() != null && idleIndex.contains(c.getUserID())) {
+			return;
+		}
+		idle.add(c);
+		if (c.getUserID() != null) {
+			idleIndex.put(c.getUserID(), c.getRating(), c);
+		}
+	}
+	
+	public synchronized void removeIdle(Client c) {
+		idle.remove(c);
+		idleIndex.remove(c.getUserID());
+	}
+	
+	public synchronized void reindexIdle(Client c) {
+		idleIndex.move(c.getUserID(), c.getRating());
+	}
 
-		for (Client client : list) {
-			returnString = returnString + client.toString() + ",";
+	
+	/*
+	 * getClosestOpponents finds the listSize idle players nearest the client by rating,
+	 * the client included, moving the window in at the top and bottom of the rankings.
+	 * The players are read into the caller's array, which should be listSize long, and the
+	 * reply is written into the caller's builder, which is cleared first, so a Service
+	 * can reuse one of each for every list request.
+	 * 
+	 * Input: a client object, the array for the players and the builder for the reply
+	 * Output: the builder, holding a csv string of user;rating entries
+	 */
+	
+	public StringBuilder getClosestOpponents(Client c, Client[] near, StringBuilder out) {
+		
+		int count = Math.min(Config.get().listSize, near.length);
+		int rank = idleIndex.rank(c.getUserID());
+		int from = Math.max(1, Math.min(rank - count / 2, idleIndex.size() - count + 1));
+		int n = idleIndex.read(from, count, null, near);
+
+		out.setLength(0);
+		for (int i = 0; i < n; i++) {
+			out.append(near[i].getUserID()).append(';').append(near[i].getRating()).append(',');
+			near[i] = null;
 		}
-		return returnString;
+		return out;
 	}
 
 	
@@ -172,7 +299,10 @@ public class Lists {
 	
 	public synchronized void removeFromLoggedIn(Client c) {
 		map.remove(c);
-		idle.remove(c);
+		removeIdle(c);
+		if (c.getEntry() != null) {
+			c.getEntry().leave();
+		}
 	}
 
 	
@@ -191,14 +321,14 @@ public class Lists {
 		activeBattles.remove(b);
 
 		try {
-			idle.add(c1);
+			addIdle(c1);
 		} catch (Exception e) {
 			c1.endSession();
 			map.remove(c1);
 		}
 
 		try {
-			idle.add(c2);
+			addIdle(c2);
 		} catch (Exception e) {
 			c2.endSession();
 			map.remove(c2);
@@ -264,4 +394,52 @@ public class Lists {
 		}
 		return false;
 	}
+
+
+	/*
+	 * Entry is a place in the quick match queue.  It starts open, and goes once, by
+	 * compare and set, either to taken (for a match or a hand-off) or to left (the
+	 * player gave up waiting or signed out), so the two can never both happen.  give
+	 * opens a taken entry again, for a player who was taken but not used.
+	 */
+
+	public static class Entry {
+		public static final int 	open = 0;
+		public static final int 	taken = 1;
+		public static final int 	left = 2;
+
+		public final Client 		client;
+		private final AtomicInteger state = new AtomicInteger(open);
+		private final boolean 		handedOver;
+		private volatile boolean 	passed = false;
+
+		Entry(Client client, boolean handedOver) {
+			this.client = client;
+			this.handedOver = handedOver;
+		}
+
+		public void passed() {
+			passed = true;
+		}
+
+		public boolean take() {
+			return state.compareAndSet(open, taken);
+		}
+
+		public boolean leave() {
+			return state.compareAndSet(open, left);
+		}
+
+		public void give() {
+			state.compareAndSet(taken, open);
+		}
+
+		public boolean isOpen() {
+			return state.get() == open;
+		}
+
+		public boolean isTaken() {
+			return state.get() == taken;
+		}
+	}
 }
@@ -0,0 +1,182 @@
+/*
+ * Message is a reusable view over the bytes of the last message read by a Comms.  The
+ * comma separated fields are found by offset when the message is read, with the same
+ * trimming as String.trim, and nothing is copied.  Commands and actions are matched
+ * against byte patterns encoded once from the enums in Values, and numbers are parsed in
+ * place, so handling a message creates no Strings and throws no exceptions on bad input:
+ * a field which is missing or does not match gives null or the default passed in.
+ *
+ * Each Comms owns one Message.  It is only valid until the next read on that Comms.
+ */
+
+package servers;
+
+public class Message {
+
+	private static final Values.Action[] 	ACTION_VALUES = Values.Action.values();
+	private static final Values.Command[] 	COMMAND_VALUES = Values.Command.values();
+	private static final byte[][] 			ACTIONS = encode(ACTION_VALUES);
+	private static final byte[][] 			COMMANDS = encode(COMMAND_VALUES);
+
+	private byte[] 	data;
+	private int 	fields = 0;
+	private int[] 	starts = new int[Values.maxFields];
+	private int[] 	ends = new int[Values.maxFields];
+
+
+	/*
+	 * wrap points the view at a new message and finds its fields.  Fields after
+	 * Values.maxFields are ignored.
+	 *
+	 * Input: the receive buffer and the number of bytes read into it
+	 * Output: none
+	 */
+
+	public void wrap(byte[] buffer, int length) {
+
+		int start = 0;
+
+		data = buffer;
+		fields = 0;
+
+		for (int i = 0; i <= length && fields < starts.length; i++) {
+			if (i == length || buffer[i] == ',') {
+				int s = start;
+				int e = i;
+
+				while (s < e && (buffer[s] & 0xff) <= ' ') {
+					s++;
+				}
+				while (e > s && (buffer[e - 1] & 0xff) <= ' ') {
+					e--;
+				}
+
+				starts[fields] = s;
+				ends[fields] = e;
+				fields++;
+				start = i + 1;
+			}
+		}
+	}
+
+
+	/*
+	 * match compares a field against a table of patterns.
+	 *
+	 * Input: the field number and the patterns
+	 * Output: the index of the matching pattern, or -1 if none match
+	 */
+
+	public int match(int field, byte[][] patterns) {
+
+		if (field >= fields) {
+			return -1;
+		}
+
+		int s = starts[field];
+		int length = ends[field] - s;
+
+		for (int p = 0; p < patterns.length; p++) {
+			byte[] pattern = patterns[p];
+
+			if (pattern.length == length) {
+				int i = 0;
+
+				while (i < length && data[s + i] == pattern[i]) {
+					i++;
+				}
+				if (i == length) {
+					return p;
+				}
+			}
+		}
+
+		return -1;
+	}
+
+	public Values.Action action(int field) {
+		int i = match(field, ACTIONS);
+		return (i < 0) ? null : ACTION_VALUES[i];
+	}
+
+	public Values.Command command(int field) {
+		int i = match(field, COMMANDS);
+		return (i < 0) ? null : COMMAND_VALUES[i];
+	}
+
+
+	/*
+	 * intField parses a field as a non-negative decimal number.
+	 *
+	 * Input: the field number, and the value to return if it is not a number
+	 * Output: the number
+	 */
+
+	public int intField(int field, int missing) {
+
+		if (field >= fields || starts[field] == ends[field]) {
+			return missing;
+		}
+
+		int value = 0;
+
+		for (int i = starts[field]; i < ends[field]; i++) {
+			int digit = data[i] - '0';
+
+			if (digit < 0 || digit > 9 || value > (Integer.MAX_VALUE - digit) / 10) {
+				return missing;
+			}
+			value = value * 10 + digit;
+		}
+
+		return value;
+	}
+
+
+	// Utilities ------------------------------------------------------------------
+
+	/*
+	 * The following methods copy fields out as Strings, for the places which keep
+	 * them such as user names.  They allocate and are not for the turn loop.
+	 */
+
+	public String string(int field) {
+
+		if (field >= fields) {
+			return null;
+		}
+		return new String(data, starts[field], ends[field] - starts[field]);
+	}
+
+	public String[] toArray() {
+
+		String[] out = new String[fields];
+
+		for (int i = 0; i < fields; i++) {
+			out[i] = string(i);
+		}
+		return out;
+	}
+
+	public static byte[][] encode(Enum<?>[] values) {
+
+		byte[][] patterns = new byte[values.length][];
+
+		for (int i = 0; i < values.length; i++) {
+			String name = values[i].name();
+
+			patterns[i] = new byte[name.length()];
+			for (int j = 0; j < name.length(); j++) {
+				patterns[i][j] = (byte) name.charAt(j);
+			}
+		}
+		return patterns;
+	}
+
+
+	// Getter - Setter ----------------------------------------------------------------
+
+	public int fields() {
+		return fields;
+	}
+}
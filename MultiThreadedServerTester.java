@@ -11,14 +11,31 @@
  * kill 	- hard stop of the server.  All threads stop when exit(0) is called.
  * stop 	- soft stop of the server.  The GameManager and Listener threads are stopped but
  * 		  	  the battle threads are allowed to complete before exiting.
+ * drain	- graceful stop for restarts.  The Listener stops accepting (a new server started on the
+ * 			  same port takes the connections), no new matches are made, running battles finish and
+ * 			  record their results, and every client is sent a reconnect hint before signing out.
+ * 			  The server exits once no clients are left.
  * flush 	- removes all clients by stopping their service threads and clearing the logged in
  * 			  map.
- * poll		- outputs the number of active battles
+ * poll		- outputs the number of active battles, spectators, and the use of the buffer pool
  * threads	- outputs the number of active threads
  * map		- lists all the active users
- * debug 	- toggles debug mode on/off.  Debug mode will allow printing to the console from various
- * 			  parts of the application.  Example: each move of a battle are written to the console, or
- * 			  certain error messages are printed.
+ * config	- shows the settings in use
+ * reload	- reads the settings file again.  The file is also checked for changes every second.
+ * 			  Start up settings such as the port are not changed by a reload.
+ * parts	- reads the robot parts and the shop's catalog again after they have been changed
+ * 			  in the Database.
+ * debug 	- toggles debug mode on/off.  Debug mode sets every category of the event log to debug so
+ * 			  each move of a battle is written to the event log.  Off returns them to info.
+ * log		- log <category> <level> sets the level of one category of the event log.  Example:
+ * 			  log battle debug
+ * leaders	- shows the top of the leaderboard
+ * tournament - tournament open takes entries, tournament start seeds the bracket and starts the
+ * 			  first round, tournament stop ends it early.  On its own it shows the progress.
+ * 
+ * If clusterGateway is set the server also joins that Gateway as one node of a cluster (see
+ * Cluster).  Several nodes can be run on one machine by giving each a settings file with its
+ * own port.
  *  
  */
 
@@ -31,16 +48,33 @@ public class MultiThreadedServerTester {
 	public static boolean isStopped = false;
 
 	public static void main(String[] args) {
+		try {
+			Config.load(args.length > 0 ? args[0] : Values.configFile);
+		} catch (Exception e) {
+			System.out.println("Could not load settings: " + e.getMessage());
+			return;
+		}
+
 		java.util.concurrent.BlockingQueue<Client> requests = new ArrayBlockingQueue<Client>(
-				1028);
+				Config.get().acceptQueue);
 		GameManager gameManager = new GameManager(requests);
-		Listener server = new Listener(6789, requests);
+		Listener server = new Listener(Config.get().port, requests);
 		Scanner kbd = new Scanner(System.in);
 
 		Lists lists = Lists.getLists();
+		EventLog log = EventLog.getEventLog();
+		BufferPool pool = BufferPool.getBufferPool();
 
 		new Thread(server).start();
 		new Thread(gameManager).start();
+		Reaper.getReaper();
+
+		Cluster cluster = null;
+		if (Config.get().clusterGateway.length() > 0) {
+			cluster = new Cluster(Config.get().clusterGateway, Config.get().nodeHost,
+					Config.get().port);
+			new Thread(cluster, "Cluster").start();
+		}
 		ThreadGroup tg = gameManager.getThreadGroup();
 
 		String inputString = "";
@@ -85,6 +119,26 @@ public class MultiThreadedServerTester {
 					showPrompt();
 				}
 
+				if (inputString.equals("drain")) {
+					System.out.println("Draining Server...");
+					server.stop();
+					lists.drain();
+
+					while (lists.map.size() > 0 || lists.activeBattles.size() > 0) {
+						System.out.println(" Clients: " + lists.map.size()
+								+ " Active Battles: " + lists.activeBattles.size());
+						try {
+							Thread.sleep(1000L);
+						} catch (InterruptedException e) {
+							e.printStackTrace();
+						}
+					}
+
+					System.out.println("Stopping Game Manager...");
+					gameManager.stop();
+					isStopped = true;
+				}
+
 				if (inputString.equals("flush")) {
 					try {
 						lists.flush();
@@ -99,9 +153,22 @@ public class MultiThreadedServerTester {
 					System.out.println("Map: " + lists.map.size());
 					System.out.println(" Idle: " + lists.idle.size());
 					System.out.println(" Waiting Quick: "
-							+ lists.waitingQuick.size());
+							+ lists.quickWaiting());
 					System.out.println(" Active Battles: "
 							+ lists.activeBattles.size());
+					System.out.println(" Load: " + Admission.getAdmission());
+					System.out.println(" Unsaved Ratings: " + Ratings.getRatings().getPending());
+					System.out.println(" Referee: " + Referee.getReferee());
+					System.out.println(" Reaped Sessions: " + Reaper.getReaper().getReaped());
+					if (BattleStore.getStore() != null) {
+						System.out.println(" Battle Store: " + BattleStore.getStore());
+					}
+					System.out.println(" Dropped Events: " + log.getDropped());
+					System.out.println(" Spectators: " + Spectators.getSpectators().watching()
+							+ " Dropped: " + Spectators.getSpectators().getDropped());
+					System.out.println(" Buffers: " + pool.inUse() + "/"
+							+ pool.capacity() + " Overflow: " + pool.getOverflow()
+							+ " Leaks: " + (pool.getLeaks() + pool.checkLeaks()));
 					showPrompt();
 				}
 
@@ -110,6 +177,27 @@ public class MultiThreadedServerTester {
 					showPrompt();
 				}
 
+				if (inputString.equals("config")) {
+					System.out.println(Config.get());
+					showPrompt();
+				}
+
+				if (inputString.equals("reload")) {
+					if (Config.reload()) {
+						System.out.println("Reloaded: " + Config.get());
+					} else {
+						System.out.println("Settings file has errors, see event log");
+					}
+					showPrompt();
+				}
+
+				if (inputString.equals("parts")) {
+					Database.getDatabase().reloadParts();
+					Shop.getShop().reload();
+					System.out.println("Parts reloaded");
+					showPrompt();
+				}
+
 				if (inputString.equals("threads")) {
 					System.out.println("Number of running threads: "
 							+ Thread.activeCount());
@@ -119,20 +207,65 @@ public class MultiThreadedServerTester {
 				if (inputString.equals("debug")) {
 					if (Values.debug) {
 						Values.debug = false;
+						log.setAll(Values.Level.info);
 						System.out.println("Debug Off");
 						showPrompt();
 					} else {
 						Values.debug = true;
+						log.setAll(Values.Level.debug);
 						System.out.println("Debug On");
 					}
 
 				}
 
+				if (inputString.equals("leaders")) {
+					Leaderboard board = Leaderboard.getLeaderboard();
+					System.out.println("Players: " + board.size());
+					System.out.println(board.top(Config.get().leaderboardSize).replace(',', '\n'));
+					showPrompt();
+				}
+
+				if (inputString.startsWith("tournament")) {
+					if (inputString.equals("tournament open")) {
+						Tournament.open(gameManager);
+						System.out.println("Tournament taking entries");
+					} else if (inputString.equals("tournament start")) {
+						Tournament t = Tournament.getTournament();
+						if (t == null || !t.start()) {
+							System.out.println("Tournament needs at least 2 entries");
+						}
+					} else if (inputString.equals("tournament stop")) {
+						if (Tournament.getTournament() != null) {
+							Tournament.getTournament().stop();
+						}
+					}
+					System.out.println("Tournament: " + Tournament.getTournament());
+					showPrompt();
+				}
+
+				if (inputString.startsWith("log ")) {
+					String[] parts = inputString.split(" ");
+					try {
+						log.setLevel(Values.Log.valueOf(parts[1]),
+								Values.Level.valueOf(parts[2]));
+						System.out.println(parts[1] + ": " + parts[2]);
+					} catch (Exception e) {
+						System.out.println("Usage: log <category> <level>");
+					}
+					showPrompt();
+				}
+
 			}
 
 		} while (!isStopped);
 
 		kbd.close();
+		Leaderboard.getLeaderboard().checkpoint();
+		Ratings.getRatings().flush();
+		if (cluster != null) {
+			cluster.stop();
+		}
+		log.stop();
 		System.exit(0);
 	}
 
@@ -0,0 +1,275 @@
+/*
+ * RankIndex keeps players in order of points, highest first, so that the player at a given
+ * rank, the rank of a given player, and the players either side of them can all be found
+ * without going through the whole list.  Players with the same points are ordered by name.
+ *
+ * It is an indexable skip list: each link also records how many players it skips over, so
+ * ranks are counted on the way down.  Finding, adding, moving and ranking a player all take
+ * O(log n); reading k players from a rank takes O(log n + k).  A map from name to node finds
+ * a player's current place when their points change.  Access is synchronized.
+ *
+ * Each entry carries a value of type T, such as the Client for an online player.
+ */
+
+package servers;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class RankIndex<T> {
+
+	private static final int 	maxLevel = 32;
+
+	private final Node<T> 		head = new Node<T>(null, Integer.MAX_VALUE, null, maxLevel);
+	private final Map<String, Node<T>> nodes = new HashMap<String, Node<T>>();
+	private final Random 		random = new Random();
+	private int 				level = 1;
+
+
+	/*
+	 * A node is one player.  next[i] is the following node on level i and width[i]
+	 * is how many places forward that link moves.
+	 */
+
+	private static class Node<T> {
+		final String 		id;
+		final int 			points;
+		final T 			value;
+		final Node<T>[] 	next;
+		final int[] 		width;
+
+		Node(String id, int points, T value, int levels) {
+			this.id = id;
+			this.points = points;
+			this.value = value;
+			this.next = array(levels);
+			this.width = new int[levels];
+		}
+
+		boolean before(int p, String i) {
+			return points > p || (points == p && id.compareTo(i) < 0);
+		}
+
+		@SuppressWarnings("unchecked")
+		static <T> Node<T>[] array(int n) {
+			return (Node<T>[]) new Node<?>[n];
+		}
+	}
+
+
+	/*
+	 * put adds a player, or moves them if they are already in the index.
+	 *
+	 * Input: the player's name, their points, and the value to keep with them
+	 * Output: none
+	 */
+
+	public synchronized void put(String id, int points, T value) {
+
+		Node<T> old = nodes.get(id);
+		if (old != null) {
+			if (old.points == points && old.value == value) {
+				return;
+			}
+			unlink(old);
+		}
+
+		int levels = randomLevel();
+		Node<T> node = new Node<T>(id, points, value, levels);
+		Node<T>[] update = Node.array(maxLevel);
+		int[] rank = new int[maxLevel];
+
+		Node<T> x = head;
+		for (int i = maxLevel - 1; i >= 0; i--) {
+			rank[i] = (i == maxLevel - 1) ? 0 : rank[i + 1];
+			while (x.next[i] != null && x.next[i].before(points, id)) {
+				rank[i] += x.width[i];
+				x = x.next[i];
+			}
+			update[i] = x;
+		}
+
+		if (levels > level) {
+			level = levels;
+		}
+
+		for (int i = 0; i < maxLevel; i++) {
+			if (i < levels) {
+				node.next[i] = update[i].next[i];
+				update[i].next[i] = node;
+				node.width[i] = update[i].width[i] - (rank[0] - rank[i]);
+				update[i].width[i] = rank[0] - rank[i] + 1;
+			} else {
+				update[i].width[i]++;
+			}
+		}
+
+		nodes.put(id, node);
+	}
+
+
+	/*
+	 * move changes a player's points if they are in the index, keeping their value.
+	 *
+	 * Input: the player's name and their new points
+	 * Output: boolean, false if the player is not in the index
+	 */
+
+	public synchronized boolean move(String id, int points) {
+
+		Node<T> node = nodes.get(id);
+		if (node == null) {
+			return false;
+		}
+		put(id, points, node.value);
+		return true;
+	}
+
+
+	/*
+	 * remove takes a player out of the index.  Removing a player who is not in it
+	 * does nothing.
+	 *
+	 * Input: the player's name
+	 * Output: none
+	 */
+
+	public synchronized void remove(String id) {
+
+		Node<T> node = nodes.get(id);
+		if (node != null) {
+			unlink(node);
+		}
+	}
+
+
+	/*
+	 * rank returns a player's place, 1 being the most points.
+	 *
+	 * Input: the player's name
+	 * Output: the rank, or 0 if the player is not in the index
+	 */
+
+	public synchronized int rank(String id) {
+
+		Node<T> node = nodes.get(id);
+		if (node == null) {
+			return 0;
+		}
+
+		int rank = 0;
+		Node<T> x = head;
+		for (int i = level - 1; i >= 0; i--) {
+			while (x.next[i] != null && x.next[i].before(node.points, id)) {
+				rank += x.width[i];
+				x = x.next[i];
+			}
+		}
+		return rank + 1;
+	}
+
+
+	/*
+	 * The following methods read players from a rank onwards.  Each player is written
+	 * to the builder, if one is given, as rank;name;points followed by a comma, the
+	 * format of the leaderboard replies, and the values are copied into the array if
+	 * one is given.
+	 *
+	 * Input: the first rank (1 or more), how many players, and where to put them
+	 * Output: the number of players read
+	 */
+
+	public synchronized int read(int from, int count, StringBuilder out) {
+		return read(from, count, out, null);
+	}
+
+	public synchronized int read(int from, int count, StringBuilder out, T[] values) {
+
+		if (from < 1) {
+			count += from - 1;
+			from = 1;
+		}
+
+		Node<T> x = at(from);
+		int n = 0;
+
+		while (x != null && n < count) {
+			if (out != null) {
+				out.append(from + n).append(';').append(x.id).append(';')
+						.append(x.points).append(',');
+			}
+			if (values != null) {
+				values[n] = x.value;
+			}
+			x = x.next[0];
+			n++;
+		}
+		return n;
+	}
+
+
+	// Utilities ------------------------------------------------------------------
+
+	/*
+	 * at walks down to the node at a rank, skipping ahead by the link widths.
+	 */
+
+	private Node<T> at(int rank) {
+
+		Node<T> x = head;
+		int travelled = 0;
+
+		for (int i = level - 1; i >= 0; i--) {
+			while (x.next[i] != null && travelled + x.width[i] <= rank) {
+				travelled += x.width[i];
+				x = x.next[i];
+			}
+			if (travelled == rank) {
+				return x;
+			}
+		}
+		return null;
+	}
+
+	private void unlink(Node<T> node) {
+
+		Node<T> x = head;
+		for (int i = maxLevel - 1; i >= 0; i--) {
+			while (x.next[i] != null && x.next[i].before(node.points, node.id)) {
+				x = x.next[i];
+			}
+			if (x.next[i] == node) {
+				x.width[i] += node.width[i] - 1;
+				x.next[i] = node.next[i];
+			} else {
+				x.width[i]--;
+			}
+		}
+		nodes.remove(node.id);
+	}
+
+	private int randomLevel() {
+		int levels = 1;
+		while (levels < maxLevel && random.nextInt(4) == 0) {
+			levels++;
+		}
+		return levels;
+	}
+
+
+	// Getter - Setter ----------------------------------------------------------------
+
+	public synchronized int size() {
+		return nodes.size();
+	}
+
+	public synchronized boolean contains(String id) {
+		return nodes.containsKey(id);
+	}
+
+	public synchronized int getPoints(String id) {
+		Node<T> node = nodes.get(id);
+		return (node == null) ? 0 : node.points;
+	}
+}
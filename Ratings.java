@@ -0,0 +1,188 @@
+/*
+ * Ratings is the Elo rating engine used for matchmaking.  Points are a lifetime total and
+ * keep growing with games played, so they say little about how strong a player is.  A
+ * rating moves towards the results a player actually gets against the opponents they meet:
+ * beating a stronger player gains more than beating a weaker one.
+ *
+ * After each battle both players' ratings are moved by K times the difference between the
+ * result (1 for a win, 0.5 for a draw, 0 for a loss) and the result expected from the gap
+ * in ratings.  K follows a schedule: new players (fewer than provisionalGames) move fast so
+ * they find their level, established players move at the normal rate, and players above
+ * masterRating move slowly.
+ *
+ * Ratings are kept in memory for the matchmaker and written to the user records in the
+ * Database every ratingFlush seconds.  A player who plays several battles between writes
+ * is written once.  The rating constants are settings (see Config).  The singleton pattern
+ * is used so there is one cache.
+ */
+
+package servers;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.mongodb.DBObject;
+
+public class Ratings implements Runnable {
+
+	private static Ratings 		ratings;
+	private Map<String, int[]> 	pending;
+
+	public static synchronized Ratings getRatings() {
+		if (ratings == null) {
+			ratings = new Ratings();
+
+			Thread t = new Thread(ratings, "Ratings");
+			t.setDaemon(true);
+			t.start();
+		}
+		return ratings;
+	}
+
+	private Ratings() {
+		pending = new HashMap<String, int[]>();
+	}
+
+
+	/*
+	 * record updates both players' ratings from the result of a battle.  Only a
+	 * battle one player won, or a draw, is rated.  One with no result, such as one
+	 * which failed to start, or which both players lost, as when both forfeit, is
+	 * not.
+	 *
+	 * Input: the two players and their results
+	 * Output: none
+	 */
+
+	public void record(Client a, Client b, Values.Result resultA, Values.Result resultB) {
+
+		double score = score(resultA);
+
+		if (score < 0 || score + score(resultB) != 1.0) {
+			return;
+		}
+
+		int ra = a.getRating();
+		int rb = b.getRating();
+		double expected = expected(ra, rb);
+
+		a.setRating(ra + (int) Math.round(kFactor(ra, a.getGames()) * (score - expected)), a.getGames() + 1);
+		b.setRating(rb + (int) Math.round(kFactor(rb, b.getGames()) * (expected - score)), b.getGames() + 1);
+
+		synchronized (this) {
+			pending.put(a.getUserID(), new int[] { a.getRating(), a.getGames() });
+			pending.put(b.getUserID(), new int[] { b.getRating(), b.getGames() });
+		}
+	}
+
+
+	private static double score(Values.Result result) {
+
+		switch (result) {
+		case win:
+			return 1.0;
+		case draw:
+			return 0.5;
+		case lose:
+		case forfeit:
+			return 0.0;
+		default:
+			return -1.0;
+		}
+	}
+
+
+	/*
+	 * The following two methods are the Elo formulas.  expected is the score a
+	 * player rated ra is expected to get against one rated rb.
+	 */
+
+	public static double expected(int ra, int rb) {
+		return 1.0 / (1.0 + Math.pow(10.0, (rb - ra) / 400.0));
+	}
+
+	public static int kFactor(int rating, int games) {
+
+		Config config = Config.get();
+
+		if (games < config.provisionalGames) {
+			return config.provisionalK;
+		}
+		if (rating >= config.masterRating) {
+			return config.masterK;
+		}
+		return config.ratingK;
+	}
+
+
+	/*
+	 * The following methods read a player's rating from their user record when they
+	 * sign in.  Players who have never been rated start at initialRating.
+	 *
+	 * Input: the user record
+	 * Output: the rating, or the number of rated games
+	 */
+
+	public static int ratingOf(DBObject info) {
+		Object r = info.get("rating");
+		return (r == null) ? Config.get().initialRating : ((Number) r).intValue();
+	}
+
+	public static int gamesOf(DBObject info) {
+		Object g = info.get("games");
+		return (g == null) ? 0 : ((Number) g).intValue();
+	}
+
+
+	/*
+	 * run writes the pending ratings every ratingFlush seconds.
+	 */
+
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(Config.get().ratingFlush * 1000L);
+				flush();
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+
+	/*
+	 * flush writes every rating changed since the last flush.  If the write fails the
+	 * ratings are put back, unless a newer one has been recorded since.
+	 */
+
+	public void flush() {
+
+		Map<String, int[]> batch;
+
+		synchronized (this) {
+			if (pending.isEmpty()) {
+				return;
+			}
+			batch = pending;
+			pending = new HashMap<String, int[]>();
+		}
+
+		try {
+			Database.getDatabase().saveRatings(batch);
+		} catch (Exception e) {
+			synchronized (this) {
+				for (Map.Entry<String, int[]> entry : batch.entrySet()) {
+					if (!pending.containsKey(entry.getKey())) {
+						pending.put(entry.getKey(), entry.getValue());
+					}
+				}
+			}
+			EventLog.getEventLog().log(Values.Log.server, Values.Level.error,
+					"ratings not saved", null, e.toString());
+		}
+	}
+
+	public synchronized int getPending() {
+		return pending.size();
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Reaper ends the sessions of clients which have gone quiet.  An idle client's service
+ * thread blocks on its socket with no time out; it does not wake up to count seconds.
+ * Instead every connection stamps the time of the last message it received, and one thread
+ * goes through every signed in client every reapInterval seconds (see Config) and compares
+ * the stamps with the clock:
+ *
+ * 		- an idle client not heard from for idleTimeOut seconds is signed out
+ * 		- a client which has sent a heartbeat (<user>,ping -> pong,) is expected to keep
+ * 		  sending them, and is signed out after heartbeatTimeOut seconds without a message
+ * 		- a parked client whose resumeGrace has run out is signed out, unless it is in a
+ * 		  battle, which answers for it (see Service.battle)
+ * 		- while the server drains, idle clients are let go so they can reconnect
+ *
+ * A client is let go by shutting the input of its socket.  Its service thread's read then
+ * fails, it sees the connection was reaped and signs the client out in the usual way.
+ * The singleton pattern is used so there is one thread.
+ */
+
+package servers;
+
+public class Reaper implements Runnable {
+
+	private static Reaper 	reaper;
+	private Lists 			lists;
+	private Client[] 		scan = new Client[0];
+	private long 			reaped = 0;
+
+	public static synchronized Reaper getReaper() {
+		if (reaper == null) {
+			reaper = new Reaper();
+
+			Thread t = new Thread(reaper, "Reaper");
+			t.setDaemon(true);
+			t.start();
+		}
+		return reaper;
+	}
+
+	private Reaper() {
+		lists = Lists.getLists();
+	}
+
+
+	public void run() {
+		while (true) {
+			try {
+				Thread.sleep(Config.get().reapInterval * 1000L);
+				sweep();
+			} catch (InterruptedException e) {
+				return;
+			} catch (Exception e) {
+				EventLog.getEventLog().log(Values.Log.server, Values.Level.error,
+						"reaper failed", null, e.toString());
+			}
+		}
+	}
+
+
+	/*
+	 * sweep makes one pass over the signed in clients.  The list is copied into an
+	 * array kept between passes, so the lock on it is held only for the copy.
+	 */
+
+	private void sweep() {
+
+		Config config = Config.get();
+		long now = System.currentTimeMillis();
+		boolean draining = lists.isDraining();
+		int n;
+
+		synchronized (lists.map) {
+			n = lists.map.size();
+			if (scan.length < n) {
+				scan = new Client[n + n / 2];
+			}
+			scan = lists.map.toArray(scan);
+		}
+
+		for (int i = 0; i < n; i++) {
+			Client c = scan[i];
+			scan[i] = null;
+
+			if (c == null) {
+				continue;
+			}
+
+			if (c.isParked()) {
+				if (c.isExpired() && c.getCurrentStatus() != Values.States.battling) {
+					count();
+					c.endSession();
+				}
+				continue;
+			}
+
+			Comms comms = c.getComms();
+			if (comms == null || c.getCurrentStatus() != Values.States.idle) {
+				continue;
+			}
+
+			long quiet = now - comms.getLastHeard();
+			long limit = (comms.hasPinged() ? config.heartbeatTimeOut : config.idleTimeOut) * 1000L;
+
+			if (draining || quiet > limit) {
+				count();
+				comms.reap();
+			}
+		}
+	}
+
+	private synchronized void count() {
+		reaped++;
+	}
+
+
+	// Getter - Setter ----------------------------------------------------------------
+
+	public synchronized long getReaped() {
+		return reaped;
+	}
+}
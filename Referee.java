@@ -0,0 +1,176 @@
+/*
+ * Referee watches for cheating.  The checks made while a player acts are cheap and done
+ * where the message is read: the parts of a robot must be ones the player owns (a bit
+ * test, see Client.ownsPart), and an action must be allowed by the robot's cool downs.
+ * What they find is not judged there.  It is reported here, with messages which could not
+ * be read and actions which came back faster than a person could answer, and the Referee
+ * thread works out what it means, away from the battle threads.
+ *
+ * report never blocks: the report is dropped if the queue is full.  The thread counts each
+ * player's reports of each kind, and a player who makes anomalyLimit of one kind within
+ * anomalyWindow seconds (see Config) is flagged in the event log.  A single odd message is
+ * not enough, as a bad connection can cause one.  The singleton pattern is used so there
+ * is one thread.
+ */
+
+package servers;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class Referee implements Runnable {
+
+	private static Referee 			referee;
+	private BlockingQueue<Report> 	reports;
+	private Map<String, long[][]> 	history;
+	private Set<String> 			flagged;
+	private long 					dropped = 0;
+
+	public static synchronized Referee getReferee() {
+		if (referee == null) {
+			referee = new Referee();
+
+			Thread t = new Thread(referee, "Referee");
+			t.setDaemon(true);
+			t.start();
+		}
+		return referee;
+	}
+
+	private Referee() {
+		reports = new ArrayBlockingQueue<Report>(Config.get().refereeQueue);
+		history = new HashMap<String, long[][]>();
+		flagged = new HashSet<String>();
+	}
+
+
+	/*
+	 * report is called by the Service and Client threads.
+	 *
+	 * Input: the user name and what was seen
+	 * Output: none
+	 */
+
+	public void report(String userID, Values.Anomaly kind) {
+
+		if (userID == null) {
+			return;
+		}
+		if (!reports.offer(new Report(userID, kind, System.currentTimeMillis()))) {
+			synchronized (this) {
+				dropped++;
+			}
+		}
+	}
+
+
+	/*
+	 * run takes the reports off the queue.  Once a minute players with nothing in
+	 * the window are forgotten.
+	 */
+
+	public void run() {
+
+		long lastSweep = System.currentTimeMillis();
+
+		while (true) {
+			try {
+				Report r = reports.poll(1L, TimeUnit.SECONDS);
+
+				if (r != null) {
+					judge(r);
+				}
+
+				long now = System.currentTimeMillis();
+				if (now - lastSweep > 60000L) {
+					sweep(now);
+					lastSweep = now;
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+
+	/*
+	 * judge records one report.  Each player has a ring of the times of their last
+	 * anomalyLimit reports of each kind; when the oldest of them is within the window
+	 * the player is flagged.
+	 */
+
+	private void judge(Report r) {
+
+		Config config = Config.get();
+		long[][] times = history.get(r.userID);
+
+		if (times == null || times[0].length != config.anomalyLimit) {
+			times = new long[Values.Anomaly.values().length][config.anomalyLimit];
+			history.put(r.userID, times);
+		}
+
+		long[] ring = times[r.kind.ordinal()];
+		System.arraycopy(ring, 1, ring, 0, ring.length - 1);
+		ring[ring.length - 1] = r.time;
+
+		EventLog.getEventLog().log(Values.Log.session, Values.Level.debug,
+				"anomaly", r.userID, r.kind.name());
+
+		if (ring[0] != 0 && r.time - ring[0] <= config.anomalyWindow * 1000L) {
+			synchronized (this) {
+				flagged.add(r.userID);
+			}
+			EventLog.getEventLog().log(Values.Log.session, Values.Level.error,
+					"cheat suspected", r.userID, r.kind.name());
+			Arrays.fill(ring, 0L);
+		}
+	}
+
+	private void sweep(long now) {
+
+		long window = Config.get().anomalyWindow * 1000L;
+		Iterator<long[][]> it = history.values().iterator();
+
+		while (it.hasNext()) {
+			boolean recent = false;
+			for (long[] ring : it.next()) {
+				recent |= now - ring[ring.length - 1] <= window;
+			}
+			if (!recent) {
+				it.remove();
+			}
+		}
+	}
+
+
+	// Getter - Setter ----------------------------------------------------------------
+
+	public synchronized boolean isFlagged(String userID) {
+		return flagged.contains(userID);
+	}
+
+	public synchronized String toString() {
+		return "Flagged: " + flagged.size() + " Queued: " + reports.size()
+				+ " Dropped: " + dropped;
+	}
+
+
+	private static class Report {
+		final String 		userID;
+		final Values.Anomaly kind;
+		final long 			time;
+
+		Report(String userID, Values.Anomaly kind, long time) {
+			this.userID = userID;
+			this.kind = kind;
+			this.time = time;
+		}
+	}
+}
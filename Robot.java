@@ -4,10 +4,16 @@
  * class, also it is used to record damage taken on any given turn.  The cool
  * downs for the special moves (charge, heal) are recorded here and used to 
  * determine if a given action is allowed on a given turn.
+ *
+ * Robots are reused.  A client keeps its robot from match to match and resets it
+ * with the new parts, and the robots of clients who sign out go to a small pool
+ * for the next clients to take, so joining a match does not make a new one.
 */
 
 package servers;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 public class Robot{
 
@@ -15,19 +21,66 @@ public class Robot{
 	private int 	defend 		= 5;
 	private int 	cool 		= 0; 
 	private int 	coolh 		= 0;
-	private int 	health 		= 50;
+	private int 	health 		= Values.baseHealth;
 	private Random 	random 		= new Random();
-	private String 	action 		= "";
+	private Values.Action action = Values.Action.forfeit;
 	private int 	maxHealth;
 
+	private static final BlockingQueue<Robot> pool = 
+			new ArrayBlockingQueue<Robot>(Config.get().robotPool);
+
+	/*
+	 * The action table.  For each action, looked up by ordinal, offence is what it
+	 * does when the robot strikes and defence is what it does when the robot is
+	 * struck.  An action with no defence takes the full attack.  BattleStore uses the
+	 * same table.
+	 */
+	static final int 	none 		= 0;
+	static final int 	plain 		= 1;
+	static final int 	charged 	= 2;
+	static final int 	block 		= 1;
+	static final int 	mend 		= 2;
+
+	static final int[] 	offence 	= new int[Values.Action.values().length];
+	static final int[] 	defence 	= new int[Values.Action.values().length];
+
+	static {
+		offence[Values.Action.attack.ordinal()] = plain;
+		offence[Values.Action.charge.ordinal()] = charged;
+		defence[Values.Action.defend.ordinal()] = block;
+		defence[Values.Action.heal.ordinal()] = mend;
+	}
+
 	// Constructor
 	public Robot(int[] sA){
 
-		this.attack = sA[0];
-		this.defend = sA[1];
-		this.health += this.defend * 2;
-		this.maxHealth = (50 + this.defend);
 		this.random.setSeed(System.nanoTime());
+		reset(sA);
+	}
+
+	/*
+	 * obtain returns a robot from the pool, reset to the given stats, or a new one
+	 * if the pool is empty.  recycle puts a robot which is no longer used back.
+	 *
+	 * Input: the attack and defend stats / the robot
+	 * Output: obtain returns the robot
+	*/
+
+	public static Robot obtain(int[] sA){
+
+		Robot r = pool.poll();
+
+		if ( r == null ) {
+			return new Robot(sA);
+		}
+		r.reset(sA);
+		return r;
+	}
+
+	public static void recycle(Robot r){
+		if ( r != null ) {
+			pool.offer(r);
+		}
 	}
 
 	// Attack Defend, Heal, Charged Attack ------------------------------------
@@ -149,17 +202,18 @@ public class Robot{
 	
 	/*
 	 * These methods are used to decide which of the actions are to be taken.
+	 * The action is looked up in the action table.
 	 * 
 	*/
 
 	public void attackedBy(int attackValue){
 		
-		switch( action ){
+		switch( defence[action.ordinal()] ){
 
-			case "heal":	heal(attackValue);
+			case mend:	heal(attackValue);
 					break;
 	
-			case "defend": 	defends(attackValue);
+			case block: 	defends(attackValue);
 					break;
 
 			default:	defenceless(attackValue);
@@ -169,21 +223,14 @@ public class Robot{
 
 	public int attacks(){
 
-		int damage;
-	
-		switch( action ){
+		switch( offence[action.ordinal()] ){
 
-			case "charge": 	damage = chargeAttack();
-					break;
+			case charged: 	return chargeAttack();
 
-			case "attack": 	damage = attack();
-					break;
-
-			default: 	damage = 0;
+			case plain: 	return attack();
 
+			default: 	return 0;
 		}
-
-		return damage;
 	}
 
    
@@ -202,9 +249,25 @@ public class Robot{
 	}
 
    	/*
-		This function is used to wipe the stats for this robot after
-		a match.
-		
+		This function is used to set the robot up for a new match with
+		the given attack and defend stats.  The cool downs are cleared and
+		health is the base health plus twice the defence.
+
+		Input: the attack and defend stats
+		Output: none
+	*/
+
+	public void reset(int[] sA){
+
+		this.attack = sA[0];
+		this.defend = sA[1];
+		reset();
+	}
+
+	/*
+		This function sets the robot up for another match with the same
+		parts, as between the rounds of a tournament.
+
 		No input or output
 	*/
 
@@ -212,7 +275,9 @@ public class Robot{
 
 		this.cool = 0;
 		this.coolh = 0;
-		this.health = 20;
+		this.health = Values.baseHealth + this.defend * 2;
+		this.maxHealth = Values.baseHealth + this.defend;
+		this.action = Values.Action.forfeit;
 	}
    
 
@@ -225,8 +290,24 @@ public class Robot{
 	public int getAttackStat(){
 		return attack;
 	}
+
+	public int getDefendStat(){
+		return defend;
+	}
    
-	public void setAction(String a) {
+	/*
+	 * allows tells whether the cool downs allow an action this turn.  A special
+	 * move on a cool down is played as the plain move instead.
+	 */
+	public boolean allows(Values.Action a) {
+		switch( a ){
+			case charge:	return cool < 1;
+			case heal:	return coolh < 1;
+			default:	return true;
+		}
+	}
+
+	public void setAction(Values.Action a) {
 		action = a;
 	}
 	   
@@ -238,6 +319,19 @@ public class Robot{
 		return health;
 	}   
 
+	public int getMaxHealth(){
+		return maxHealth;
+	}
+
+	/*
+	 * setState is used by BattleStore to hand back a turn it has resolved.
+	 */
+	public void setState(int health, int cool, int coolh){
+		this.health = health;
+		this.cool = cool;
+		this.coolh = coolh;
+	}
+
 	public int getCool() {
 		return cool;
 	}
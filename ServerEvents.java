@@ -0,0 +1,171 @@
+/*
+ * ServerEvents holds the Java Flight Recorder events emitted by the server.  They are
+ * used for profiling in production, so that garbage collection and lock contention seen
+ * in a recording can be lined up with logins, matchmaking and battle turns.  Recording is
+ * turned on from the command line, for example:
+ *
+ * 		java -XX:StartFlightRecording=filename=server.jfr servers.MultiThreadedServerTester
+ *
+ * When no recording is running the events are disabled and cost next to nothing.  Each
+ * event has a start method so the calling code stays on one line.
+ */
+
+package servers;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+public class ServerEvents {
+
+	private ServerEvents() {
+	}
+
+
+	/*
+	 * Recorded for each sign in attempt.  The duration covers reading the
+	 * credentials, authenticating and sending back the parts list.
+	 */
+
+	@Name("servers.Login")
+	@Label("Login")
+	@Category({ "Robotype", "Sessions" })
+	public static class Login extends Event {
+
+		@Label("User")
+		public String userID;
+
+		@Label("Result")
+		public String result;
+
+		public static Login start() {
+			Login e = new Login();
+			e.begin();
+			return e;
+		}
+
+		public void end(String user, String outcome) {
+			userID = user;
+			result = outcome;
+			commit();
+		}
+	}
+
+
+	/*
+	 * Recorded each time a client moves from one Values.States to another.
+	 */
+
+	@Name("servers.StateChange")
+	@Label("State Change")
+	@Category({ "Robotype", "Sessions" })
+	public static class StateChange extends Event {
+
+		@Label("User")
+		public String userID;
+
+		@Label("From")
+		public String from;
+
+		@Label("To")
+		public String to;
+
+		public static void record(String user, Values.States f, Values.States t) {
+			StateChange e = new StateChange();
+
+			if (e.isEnabled()) {
+				e.userID = user;
+				e.from = (f == null) ? null : f.name();
+				e.to = (t == null) ? null : t.name();
+				e.commit();
+			}
+		}
+	}
+
+
+	/*
+	 * Recorded for each pass of GameManager.makeQuickMatch.
+	 */
+
+	@Name("servers.QuickMatch")
+	@Label("Quick Match")
+	@Category({ "Robotype", "Matchmaking" })
+	public static class QuickMatch extends Event {
+
+		@Label("Pool Size")
+		public int poolSize;
+
+		@Label("Pairs Made")
+		public int pairs;
+
+		public static QuickMatch start() {
+			QuickMatch e = new QuickMatch();
+			e.begin();
+			return e;
+		}
+
+		public void end(int pool, int made) {
+			poolSize = pool;
+			pairs = made;
+			commit();
+		}
+	}
+
+
+	/*
+	 * Recorded for each phase of a battle turn: reading the actions, resolving them
+	 * and updating the players.
+	 */
+
+	@Name("servers.BattleTurn")
+	@Label("Battle Turn Phase")
+	@Category({ "Robotype", "Battle" })
+	public static class BattleTurn extends Event {
+
+		@Label("Session")
+		public String sessionID;
+
+		@Label("Turn")
+		public int turn;
+
+		@Label("Phase")
+		@Description("actions, resolve or update")
+		public String phase;
+
+		public static BattleTurn start(String session, int t, String p) {
+			BattleTurn e = new BattleTurn();
+			e.sessionID = session;
+			e.turn = t;
+			e.phase = p;
+			e.begin();
+			return e;
+		}
+	}
+
+
+	/*
+	 * Recorded for each call made through the Database singleton.
+	 */
+
+	@Name("servers.DatabaseCall")
+	@Label("Database Call")
+	@Category({ "Robotype", "Database" })
+	public static class DatabaseCall extends Event {
+
+		@Label("Operation")
+		public String operation;
+
+		@Label("User")
+		public String userID;
+
+		public static DatabaseCall start(String op, String user) {
+			DatabaseCall e = new DatabaseCall();
+			e.operation = op;
+			e.userID = user;
+			e.begin();
+			return e;
+		}
+	}
+}
@@ -16,6 +16,10 @@
  * 
  * run -> idle	-> ( shop	<-> run ) -> run
  * 
+ * run -> idle	-> watch -> ( watching <-> run ) -> run
+ * 
+ * run -> idle	-> joinTournament 	  -> ( battle <-> waiting ) -> run
+ * 
  * run -> Client.endSession (Kills the thread)
  * 
  * Note: the battle method runs as an uninterrupted loop.  The state is changed when GameManager 
@@ -27,34 +31,42 @@
 package servers;
 
 import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 public class Service implements Runnable {
 	
-	private boolean 	isStopped;
-	private boolean 	interrupted;
-	private boolean 	started;
-	private boolean 	request;
-	private Client 		client;
-	private Timer 		timer;
-	private Lists 		lists;
-	private Comms 		comms;
-	private Values.CA 	perform;
-	private String 		message;
-	private Battle 		currentBattle;
+	private volatile boolean 	isStopped;
+	private volatile boolean 	interrupted;
+	private volatile boolean 	started;
+	private final AtomicLong 	request = new AtomicLong(0);
+	private long 				requests = 0;
+	private Client 				client;
+	private Timer 				timer;
+	private Lists 				lists;
+	private volatile Comms 		comms;
+	private volatile Values.CA 	perform;
+	private volatile String 	message;
+	private volatile Battle 	currentBattle;
+	private volatile Thread 	worker;
+	private Spectators.Watcher 	watcher;
+	private StringBuilder 		reply = new StringBuilder();
+	private Client[] 			near = new Client[Config.get().listSize];
 
 	public Service(Client c, Comms cs) {
 		
 		this.comms = cs;
 		this.lists = Lists.getLists();
 		this.client = c;
-		this.timer = new Timer(15);
+		this.timer = new Timer();
 		this.isStopped = false;
-		this.request = false;
 		this.interrupted = false;
 		this.started = false;
 	}
  
 	public void run() {
+		worker = Thread.currentThread();
 		synchronized (this) {
 			
 			while (!isStopped) {
@@ -76,6 +88,9 @@ public class Service implements Runnable {
 				case battling:
 					battle();
 					break;
+				case watching:
+					watching();
+					break;
 				default:
 					break;
 				
@@ -86,50 +101,101 @@ public class Service implements Runnable {
 	}
 
 	private void idle() {
-		String[] temp = null;
+		Message temp = null;
+		Comms using = comms;
 
 		//client.setCurrentStatus(Values.States.idle);
 
+		// A parked client waits to be woken by rebind, or signed out by the Reaper
+		if (client.isParked()) {
+			if (client.isExpired()) {
+				client.endSession();
+			} else {
+				LockSupport.parkNanos(this, Config.get().resumeGrace * 1000000000L);
+			}
+			return;
+		}
+
+		if (lists.isDraining()) {
+			closeSession();
+			return;
+		}
+
+		// No time out: the Reaper lets go of clients which have gone quiet
+		try {
+			using.setTimeOut(0);
+			temp = using.receive();
+			using.setTimeOut(Config.get().defaultTimeOut);
+		} catch (IOException e) {
+			if (using.isReaped() || !client.park(using)) {
+				closeSession();
+			}
+			return;
+		} catch (Exception e) {
+			closeSession();
+			return;
+		}
+
 		try {
-			temp = interruptableRead(1, 180);
 			requestedService(temp);
 		} catch (Exception e) {
-			client.endSession();
+			closeSession();
 		}
 	}
 
    /*
     * This methods decodes the desired action sent by the user and then calls
-    * the corresponding method.
+    * the corresponding method.  Anything which is not one of Values.Command is
+    * ignored, apart from a report to the Referee, and the client stays idle.
     * 
-    * Input: The string sent by the client
+    * Input: The message sent by the client
     * Output: none
     */
 	
-    private void requestedService(String[] s){
+    private void requestedService(Message s){
      
+    	Values.Command command = s.command(1);
+    	
+    	if (command == null) {
+    		Referee.getReferee().report(client.getUserID(), Values.Anomaly.malformed);
+    		return;
+    	}
     	
-    	switch(s[1]){
+    	switch(command){
     	
-    		case "list":	idleList();
+    		case list:		idleList();
     						client.setCurrentStatus(Values.States.idle);
     						break;
     	
-    		case "match":	joinMatchLobby();
+    		case match:		joinMatchLobby();
     						timer.start();
     						client.setCurrentStatus(Values.States.waiting);
     						break;
     						
-    		case "quick":	joinQuickMatchLobby();
+    		case quick:		joinQuickMatchLobby();
     						timer.start();
     						client.setCurrentStatus(Values.States.waitingQuick);
     						break;
     						
-    		case "store":	shop();
-    						client.setCurrentStatus(Values.States.shopping);
+    		case store:		openShop();
+    						break;
+    						
+    		case signout: client.endSession();				
+    						break;
+    						
+    		case watch:		watch(s.string(2));
+    						break;
+    						
+    		case enter:		joinTournament();
     						break;
     						
-    		case "signout": client.endSession();				
+    		case leaders:	leaders(false);
+    						break;
+    						
+    		case rank:		leaders(true);
+    						break;
+    						
+    		case ping:		heartbeat();
     						break;
     	}
     	
@@ -144,12 +210,125 @@ public class Service implements Runnable {
     
 	private void idleList() {
 		try {
-			comms.write(lists.getClosestOpponents(client));
+			if (near.length != Config.get().listSize) {
+				near = new Client[Config.get().listSize];
+			}
+			comms.write(lists.getClosestOpponents(client, near, reply).toString());
 		} catch (Exception e) {
-			if (!Values.debug) {
-				System.out.println("Failure to write nearest in list, Service");
+			EventLog.getEventLog().log(Values.Log.session, Values.Level.error,
+					"list failed", client.getUserID(), e.toString());
+			client.endSession();
+		}
+	}
+
+	
+	/*
+	 * leaders writes back part of the Leaderboard: the top players, or the players
+	 * around this client.
+	 * 
+	 * Input: boolean, true for the players around this client
+	 * Output: none
+	 */
+	
+	private void leaders(boolean around) {
+		Leaderboard board = Leaderboard.getLeaderboard();
+		int size = Config.get().leaderboardSize;
+		
+		try {
+			comms.write(around ? board.around(client.getUserID(), size / 2) : board.top(size));
+		} catch (Exception e) {
+			closeSession();
+		}
+	}
+
+	
+	/*
+	 * joinTournament enters the client in the tournament taking entries.  As with a
+	 * quick match the client then sends their robot parts.  Entrants are kept in
+	 * place, waiting, until the tournament is over for them.  If no tournament is
+	 * taking entries the client is told fail and stays idle.
+	 * 
+	 * no input/output
+	 */
+	
+	private void joinTournament() {
+		
+		Tournament t = Tournament.getTournament();
+		
+		try {
+			if (t == null || !t.isOpen()) {
+				comms.write("fail,");
+				return;
+			}
+			
+			client.unpack(lobbyRead(comms));
+			
+			if (!t.register(client)) {
+				comms.write("fail,");
+				return;
+			}
+			
+			client.stayPut();
+			lists.removeIdle(client);
+			client.setCurrentStatus(Values.States.waiting);
+			comms.write("entered,");
+		} catch (Exception e) {
+			closeSession();
+		}
+	}
+
+	
+	/*
+	 * watch hands the connection to Spectators so the client is sent each turn of a
+	 * running battle.  If there is no such battle the client is told fail and stays idle.
+	 * 
+	 * Input: the session id of the battle
+	 * Output: none
+	 */
+	
+	private void watch(String sessionID) {
+		try {
+			watcher = Spectators.getSpectators().watch(sessionID, comms);
+			
+			if (watcher == null) {
+				comms.write("fail,");
+			} else {
+				client.setCurrentStatus(Values.States.watching);
 			}
+		} catch (Exception e) {
+			closeSession();
+		}
+	}
+
+	
+	/*
+	 * watching waits while Spectators has the connection, parked until Spectators says
+	 * the watcher is done.  When the battle is over the connection is given back and the
+	 * client is idle again.  A watcher dropped for falling behind is signed out, since
+	 * part of a turn may have been sent.
+	 * 
+	 * no input/output
+	 */
+	
+	private void watching() {
+		
+		if (!watcher.isDone()) {
+			LockSupport.park(this);
+			return;
+		}
+		
+		if (watcher.isDropped()) {
+			watcher = null;
 			client.endSession();
+			return;
+		}
+		
+		watcher = null;
+		try {
+			comms.setBlocking(true);
+			client.setCurrentStatus(Values.States.idle);
+		} catch (Exception e) {
+			closeSession();
 		}
 	}
 
@@ -172,12 +351,12 @@ public class Service implements Runnable {
 	private void joinQuickMatchLobby() {
 		
 		try {
-			client.unpack(interruptableRead(1, 60));
+			client.unpack(lobbyRead(comms));
 
 		} catch (Exception e) {
 
-			client.endSession();
-			
+			closeSession();
+			return;
 		}
 
 		lists.jumpQuick(client);
@@ -185,11 +364,72 @@ public class Service implements Runnable {
 
 	
 	/*
-	 * Unimplemented, shop under construction. 
+	 * heartbeat answers a ping.  From then on the client is held to the heartbeat
+	 * time out (see Reaper).
+	 */
+	
+	private void heartbeat() {
+		try {
+			comms.heartbeat();
+			comms.write("pong,");
+		} catch (Exception e) {
+			closeSession();
+		}
+	}
+	
+	
+	/*
+	 * openShop sends the catalog and puts the client in the shop.  shop then takes
+	 * one message at a time: buy makes a purchase (see Shop), anything else leaves
+	 * the shop and is carried out as it would be from idle.  A client who says
+	 * nothing for lobbyTimeOut seconds is taken back to idle.
+	 * 
+	 * no input/output
 	 */
 	
+	private void openShop() {
+		try {
+			comms.write(Shop.getShop().listing(client.getScrap()));
+			client.setCurrentStatus(Values.States.shopping);
+		} catch (Exception e) {
+			closeSession();
+		}
+	}
+	
 	private void shop() {
-		client.setCurrentStatus(Values.States.idle);
+		Message msg;
+		Comms using = comms;
+		
+		try {
+			msg = lobbyRead(using);
+		} catch (SocketTimeoutException e) {
+			client.setCurrentStatus(Values.States.idle);
+			return;
+		} catch (IOException e) {
+			if (using.isReaped() || !client.park(using)) {
+				closeSession();
+			}
+			return;
+		} catch (Exception e) {
+			client.setCurrentStatus(Values.States.idle);
+			return;
+		}
+		
+		if (msg.command(1) == Values.Command.ping) {
+			heartbeat();
+			return;
+		}
+		if (msg.command(1) != Values.Command.buy) {
+			client.setCurrentStatus(Values.States.idle);
+			requestedService(msg);
+			return;
+		}
+		
+		try {
+			comms.write(Shop.getShop().buy(client, msg.intField(2, -1), msg.string(3)));
+		} catch (Exception e) {
+			closeSession();
+		}
 	}
 
 	
@@ -204,9 +444,12 @@ public class Service implements Runnable {
 	private void waitingForBattle() {
 		
 		if (!started) {
-			if ((timer.waitedLongEnough()) && (client.isMoveable())) {
-				lists.jumpBack(client);
+			if (((timer.waitedLongerThan(Config.get().queueTimeOut) && lists.mayTimeOut(client))
+					|| lists.isDraining()) && lists.jumpBack(client)) {
 				client.setCurrentStatus(Values.States.idle);
+				if (client.isParked()) {
+					return;
+				}
 				try {
 					comms.write(",,,,,,,,,");
 				} catch (Exception e) {
@@ -230,113 +473,225 @@ public class Service implements Runnable {
 	/*
 	 * the battle method is used to make moves in the Battle thread.  It waits for
 	 * a request while the run-battle loop is executing.  When the request is received
-	 * the corresponding method is executed: read, update, write.
+	 * the corresponding method is executed: read, write, update, or exchange (a write
+	 * and then an update).  The battle thread wakes it when it makes a request.
+	 * 
+	 * If the connection fails the client is parked and the request is left pending, to
+	 * be carried out on the new connection once the client resumes.  If the grace period
+	 * runs out first the pending requests are answered without the client, with a 
+	 * forfeit for the action, so the battle can finish.
+	 * 
+	 * Every request is answered exactly once (see answer), whichever way it ends.
 	 * 
 	 * no input/output
 	 */
 	
 	private void battle() {
 		
-		if ((request) && (!interrupted)) {
+		long id = request.get();
 		
-			switch (perform) {
+		if ((id != 0) && (!interrupted)) {
 			
-			case read:
-				try {
-					comms.read();
-					currentBattle.synchronize();
-				} catch (IOException e) {
-					interrupted = true;
-					client.endSession();
+			Comms using = comms;
+			Values.CA perform = this.perform;
+			
+			if (client.isParked()) {
+				if (!client.isExpired()) {
+					pause();
+					return;
 				}
-
-			case write:
-				client.updateAction();
-				currentBattle.synchronize();
-				break;
-				
-			case update:
+				if (perform == Values.CA.update || perform == Values.CA.exchange) {
+					client.forfeit();
+				}
+			} else {
 				try {
-					comms.write(message);
-					currentBattle.synchronize();
+					switch (perform) {
+					
+					case read:
+						using.receive();
+						break;
+						
+					case write:
+						using.write(message);
+						break;
+						
+					case update:
+						client.updateAction(currentBattle.getTurn(), currentBattle.getDeadline());
+						break;
+						
+					case exchange:
+						using.write(message);
+						client.updateAction(currentBattle.getTurn(), currentBattle.getDeadline());
+						break;
+						
+					default:
+						break;
+						
+					}// end switch
+					
 				} catch (Exception e) {
-					interrupted = true;
-					client.endSession();
+					
+					if (!client.park(using)) {
+						interrupted = true;
+						answer(id, true);
+						closeSession();
+					}
+					return;
 				}
+			}
 
-			default:
-				isStopped = true;
-				interrupted = true;
-				
-			}// end switch
-
-			request = false;
-			perform = null;
+			answer(id, false);
 		}else {
-			try {
-				Thread.sleep(100L);
-
-			} catch (Exception Exception1) {
-				client.endSession();
-			}
+			LockSupport.park(this);
 		}
 	}
+	
+	
+	/*
+	 * pause waits while the client is parked in a battle, until rebind wakes the
+	 * thread or the grace period runs out.
+	 */
+	private void pause() {
+		LockSupport.parkNanos(this, Math.max(1L, client.graceLeft()) * 1000000L);
+	}
 
 	
 	/*
 	 * This method is called from the battle thread to let battle() know what to do.
+	 * Each request is numbered so that an answer to one the battle has given up on
+	 * cannot be taken for the next.
 	 */
 	public void request(Values.CA perform, String message) {
 		this.perform = perform;
 		this.message = message;
-		request = true;
+		request.set(++requests);
+		LockSupport.unpark(worker);
 	}
 
 	
 	/*
-	 * This method allows for a read that can be interrupted.  This is necessary so that the 
-	 * stop method can be carried out which cannot happen while blocking.
+	 * answer tells the battle a request is done.  Only the first answer to a request
+	 * counts.  A request given up, because the session is ending, plays a forfeit if
+	 * it was for the player's action.
+	 * 
+	 * Input: the request and whether it was given up
+	 * Output: none
 	 */
-	private String[] interruptableRead(int to, int tries) throws Exception {
-		String[] msg = null;
-		int i = 0;
-
-		comms.setTimeOut(to);
-
-		while ((i++ < tries) && (!isStopped)) {
-			try {
-				msg = comms.read();
-			} catch (Exception localException) {
-			}
+	private void answer(long id, boolean giveUp) {
+		Values.CA p = perform;
+		Battle b = currentBattle;
+		
+		if (id == 0 || !request.compareAndSet(id, 0)) {
+			return;
 		}
+		if (giveUp && (p == Values.CA.update || p == Values.CA.exchange)) {
+			client.forfeit();
+		}
+		if (b != null) {
+			b.synchronize();
+		}
+	}
 
-		this.comms.setTimeOut(60);
+	
+	/*
+	 * abandon is called by the battle thread when a player has not answered in time.
+	 * The request is dropped, so a late answer is ignored, and if it was for the
+	 * player's action the timeoutAction is played.
+	 * 
+	 * Input: none
+	 * Output: boolean, true if there was a request still open
+	 */
+	public boolean abandon() {
+		Values.CA p = perform;
+		
+		if (request.getAndSet(0) == 0) {
+			return false;
+		}
+		if (p == Values.CA.update || p == Values.CA.exchange) {
+			client.timedOut();
+		}
+		return true;
+	}
 
-		if (msg == null) {
+	
+	/*
+	 * lobbyRead is a single blocking read of at most lobbyTimeOut seconds, for the
+	 * lobbies and the shop.  As in idle, stop reaps the connection to wake it, so there
+	 * is no need to poll.
+	 * 
+	 * Input: the connection to read from
+	 * Output: the message; SocketTimeoutException if nothing came in time
+	 */
+	private Message lobbyRead(Comms using) throws Exception {
+		
+		if (isStopped || lists.isDraining() || using.isReaped()) {
 			throw new Exception();
 		}
-		return msg;
+		
+		using.setReadTimeOut(Config.get().lobbyTimeOut * 1000L);
+		try {
+			return using.receive();
+		} finally {
+			using.setTimeOut(Config.get().defaultTimeOut);
+		}
+	}
+
+	
+	/*
+	 * closeSession signs the client out.  When the server is draining the client is first
+	 * told to reconnect, so it can sign in again to the server taking over the port.
+	 */
+	private void closeSession() {
+		if (lists.isDraining()) {
+			try {
+				comms.write("reconnect,");
+			} catch (Exception e) {
+			}
+		}
+		client.endSession();
 	}
 
 	
 	/*
 	 * This is called when the battle is over and the state must be changed.  It signals that
-	 * the battle is over and that the main loop should go back to the idle state.
+	 * the battle is over and that the main loop should go back to the idle state.  A player
+	 * held by a tournament instead waits, kept in place, for their next battle.  The quick
+	 * match entry which led to the battle, if any, is let go.
+	 * 
+	 * Input: boolean, true to hold the client for a tournament
 	 */
-	public void interrupt() {
+	public void interrupt(boolean hold) {
 		interrupted = true;
 		currentBattle = null;
 		started = false;
-		client.setCurrentStatus(Values.States.idle);
+		client.setEntry(null);
+		
+		if (hold) {
+			client.stayPut();
+			client.setCurrentStatus(Values.States.waiting);
+		} else {
+			client.moveFreely();
+			client.setCurrentStatus(Values.States.idle);
+		}
+		LockSupport.unpark(worker);
 	}
 
 	/*
-	 * This method kills the thread.
+	 * This method kills the thread.  An idle client's thread is blocked reading with no
+	 * time out, so the connection is reaped to wake it; it then signs the client out
+	 * and closes the connection.
 	 */
 	public void stop() {
+		Comms c = comms;
+		
 		isStopped = true;
 		interrupted = true;
 		started = false;
+		answer(request.get(), true);
+		if (c != null) {
+			c.reap();
+		}
+		LockSupport.unpark(worker);
 	}
 
 	
@@ -345,6 +700,20 @@ public class Service implements Runnable {
 	 */
 	public void setCurrentBattle(Battle currentBattle) {
 		this.currentBattle = currentBattle;
+		interrupted = false;
 		started = true;
 	}
+	
+	public Battle getCurrentBattle() {
+		return currentBattle;
+	}
+	
+	
+	/*
+	 * rebind is called when the client resumes on a new connection.
+	 */
+	public void rebind(Comms cs) {
+		comms = cs;
+		LockSupport.unpark(worker);
+	}
 }
@@ -0,0 +1,106 @@
+/*
+ * Sessions keeps the resume tokens handed out at sign in.  When a client's connection
+ * drops the Client is parked rather than signed out, and for resumeGrace seconds (Config)
+ * the player can open a new connection and send
+ *
+ * 		resume,<token>,
+ *
+ * instead of their user name and password.  The new socket is then bound to the existing
+ * Client, Service and Battle without going back to the Database.  The singleton pattern
+ * is used here, as in Lists, so there is one table of tokens.
+ *
+ * When the server is one node of a cluster each token starts with the node id given by the
+ * Gateway, so a resume can be sent back to the node holding the session.
+ */
+
+package servers;
+
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class Sessions {
+
+	private static Sessions 	sessions;
+	private Map<String, Client> tokens;
+	private SecureRandom 		random;
+	private volatile String 	prefix = "";
+
+	private Sessions() {
+		tokens = new ConcurrentHashMap<String, Client>();
+		random = new SecureRandom();
+	}
+
+	public static synchronized Sessions getSessions() {
+		if (sessions == null) {
+			sessions = new Sessions();
+		}
+		return sessions;
+	}
+
+
+	/*
+	 * issue creates a new token for a client which has just signed in.
+	 *
+	 * Input: the client object
+	 * Output: the token, a 32 character hex string after the node prefix, if any
+	 */
+
+	public String issue(Client c) {
+		byte[] bytes = new byte[16];
+		StringBuilder sb = new StringBuilder(prefix);
+
+		random.nextBytes(bytes);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+
+		String token = sb.toString();
+		tokens.put(token, c);
+		return token;
+	}
+
+
+	/*
+	 * resume binds a new connection to the session holding the token.  The client is
+	 * told which state it has come back into so it can pick up where it left off, for
+	 * example by sending the action for the current turn of a battle.
+	 *
+	 * Input: the token sent by the client, and the Comms for the new connection
+	 * Output: boolean, true if the session was found and rebound, false otherwise
+	 */
+
+	public boolean resume(String token, Comms comms) throws Exception {
+		Client c = tokens.get(token);
+
+		if (c == null || !c.rebind(comms)) {
+			return false;
+		}
+
+		comms.write("resumed," + c.getCurrentStatus().name() + ",");
+		return true;
+	}
+
+
+	/*
+	 * remove is called when a session ends so the token can no longer be used.
+	 *
+	 * Input: the token
+	 * Output: none
+	 */
+
+	public void remove(String token) {
+		if (token != null) {
+			tokens.remove(token);
+		}
+	}
+
+	public void setPrefix(String p) {
+		prefix = p;
+	}
+
+	public int size() {
+		return tokens.size();
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * Shop sells robot parts for scrap.  An idle player opens it with the store command and is
+ * sent the catalog and their scrap:
+ *
+ * 		<user>,store				-> shop,<scrap>,id;type;attack;defend;price,...
+ * 		<user>,buy,<part>,<key>		-> bought,<part>,<scrap>,   or   fail,<reason>,
+ *
+ * where the reason is part (no such part), owned or scrap (not enough).  Anything else
+ * leaves the shop.
+ *
+ * The catalog is read from the Database once and kept in memory, with the reply already
+ * built, so opening the shop costs nothing however many players do it at once.  It is read
+ * again by reload, with the parts command.  A purchase is one conditional update of the
+ * user record (see Database.buyPart): the scrap is taken and the part added only if the
+ * player has the scrap, does not have the part, and has not made a purchase with the same
+ * key.  The client picks the key, and it is recorded with the part, so a purchase sent again
+ * after a lost reply is answered as bought rather than charged twice, and a key only ever
+ * answers for the part it bought.  Purchases do not take the Database lock.  The parts
+ * a player owns are kept in the Client as a bitset and updated as they buy.  The singleton
+ * pattern is used so there is one catalog.
+ */
+
+package servers;
+
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import java.util.List;
+
+public class Shop {
+
+	private static Shop 		shop;
+	private volatile Catalog 	catalog;
+	private Database 			db;
+
+	public static synchronized Shop getShop() {
+		if (shop == null) {
+			shop = new Shop();
+			shop.reload();
+		}
+		return shop;
+	}
+
+	private Shop() {
+		db = Database.getDatabase();
+	}
+
+
+	/*
+	 * listing is the reply to the store command.
+	 *
+	 * Input: the player's scrap
+	 * Output: the catalog reply
+	 */
+
+	public String listing(int scrap) {
+		return "shop," + scrap + "," + catalog.listing;
+	}
+
+
+	/*
+	 * buy makes a purchase for a player.  If the update does not go through the user
+	 * record is read to find out why: the purchase may already have been made with
+	 * this key, in which case it is reported as bought.  The player's scrap in the
+	 * Client is brought up to date either way.
+	 *
+	 * Input: the client, the part and the client's key for this purchase (if none is
+	 * given the part is used, as a part can only be bought once)
+	 * Output: the reply for the client
+	 */
+
+	public String buy(Client c, int part, String key) {
+
+		Catalog cat = catalog;
+
+		if (part < 0 || part >= cat.price.length || cat.price[part] < 0) {
+			return "fail,part,";
+		}
+		if (key == null || key.isEmpty()) {
+			key = "part" + part;
+		}
+
+		int price = cat.price[part];
+		String tag = key + ":" + part;
+		DBObject before = db.buyPart(c.getUserID(), part, price, tag);
+
+		if (before != null) {
+			c.addPart(part);
+			c.setScrap(number(before, "scrap") - price);
+			EventLog.getEventLog().log(Values.Log.session, Values.Level.info,
+					"bought", c.getUserID(), part, price);
+			return "bought," + part + "," + c.getScrap() + ",";
+		}
+
+		DBObject now = db.getUserInfo(c.getUserID());
+		Object keys = now.get("purchases");
+
+		c.setScrap(number(now, "scrap"));
+		if (!owns(now, part)) {
+			return "fail,scrap,";
+		}
+		c.addPart(part);
+		if (keys instanceof List && ((List<?>) keys).contains(tag)) {
+			return "bought," + part + "," + c.getScrap() + ",";
+		}
+		return "fail,owned,";
+	}
+
+
+	/*
+	 * reload reads the catalog from the Database and swaps it in.  Parts with ids
+	 * which are not numbers are left out.  A part without a price costs partPrice.
+	 */
+
+	public void reload() {
+
+		DBCursor cursor = db.getAllParts();
+		int size = db.numberOfParts();
+		int[] price = new int[size];
+		String[] entries = new String[size];
+
+		for (int i = 0; i < size; i++) {
+			price[i] = -1;
+		}
+
+		while (cursor != null && cursor.hasNext()) {
+			DBObject part = cursor.next();
+			int id;
+
+			try {
+				id = Integer.parseInt(String.valueOf(part.get("id")));
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			if (id < 0 || id >= size) {
+				continue;
+			}
+
+			price[id] = (part.get("price") == null) ? Config.get().partPrice : number(part, "price");
+			entries[id] = id + ";" + part.get("type") + ";" + number(part, "attack") + ";"
+					+ number(part, "defend") + ";" + price[id] + ",";
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (String entry : entries) {
+			if (entry != null) {
+				sb.append(entry);
+			}
+		}
+		catalog = new Catalog(price, sb.toString());
+	}
+
+
+	// Utilities ------------------------------------------------------------------
+
+	private static int number(DBObject o, String key) {
+		Object n = o.get(key);
+		return (n == null) ? 0 : ((Number) n).intValue();
+	}
+
+	private static boolean owns(DBObject user, int part) {
+		DBObject parts = (DBObject) user.get("parts");
+		return parts != null && Boolean.TRUE.equals(parts.get(part + ""));
+	}
+
+
+	/*
+	 * Catalog is one reading of the parts: the price of each part by id (-1 for no
+	 * such part) and the catalog reply.  It is not changed once made.
+	 */
+
+	private static class Catalog {
+		final int[] 	price;
+		final String 	listing;
+
+		Catalog(int[] price, String listing) {
+			this.price = price;
+			this.listing = listing;
+		}
+	}
+}
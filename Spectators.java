@@ -0,0 +1,297 @@
+/*
+ * Spectators lets idle players watch a battle.  A player sends
+ *
+ * 		<user>,watch,<sessionID>
+ *
+ * and from then on is sent one line per turn of that battle:
+ *
+ * 		<sessionID>,<turn>,<user1>,<health1>,<action1>,<user2>,<health2>,<action2>,<result1>,
+ *
+ * Each line ends with a newline so several can be read at once.  When the battle ends the
+ * player goes back to idle.
+ *
+ * Each battle has a Feed, a small ring of the last spectatorLag turns.  The battle thread
+ * encodes a turn once and puts the bytes in the ring; it never writes to a spectator, so
+ * watchers cannot slow the players down however many there are.  One background thread
+ * sends the frames to every watcher of every feed.  The frames are read only and shared;
+ * each watcher only keeps a cursor (the turn it is on and how many bytes of it have gone
+ * out).  Watchers' sockets are non-blocking, so a slow watcher just falls behind, and one
+ * which falls more than the ring behind is dropped.  A battle nobody is watching does not
+ * build its frames at all, and the sender thread sleeps until there is something to send.
+ * The singleton pattern is used so there is one sender thread.
+ */
+
+package servers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+public class Spectators implements Runnable {
+
+	private static Spectators 	spectators;
+	private Map<String, Feed> 	feeds;
+	private Thread 				sender;
+	private long 				dropped = 0;
+
+	public static synchronized Spectators getSpectators() {
+		if (spectators == null) {
+			spectators = new Spectators();
+			spectators.sender = new Thread(spectators, "Spectators");
+			spectators.sender.setDaemon(true);
+			spectators.sender.start();
+		}
+		return spectators;
+	}
+
+	private Spectators() {
+		feeds = new ConcurrentHashMap<String, Feed>();
+	}
+
+
+	/*
+	 * open is called by a Battle when it starts, and close when it ends.  Watchers
+	 * are sent any frames they still have to receive before they are let go.
+	 *
+	 * Input: the battle's session id
+	 * Output: open returns the feed the battle publishes its turns to
+	 */
+
+	public Feed open(String sessionID) {
+		Feed feed = new Feed(this, Config.get().spectatorLag);
+		feeds.put(sessionID, feed);
+		return feed;
+	}
+
+	public void close(String sessionID) {
+		Feed feed = feeds.get(sessionID);
+		if (feed != null) {
+			feed.closed = true;
+			wake();
+		}
+	}
+
+	private void wake() {
+		LockSupport.unpark(sender);
+	}
+
+
+	/*
+	 * watch adds a connection to a battle's watchers.  The connection is made
+	 * non-blocking and is not read from again until the watcher is done.  The
+	 * watcher starts at the next turn, as turns are not kept while nobody watches.
+	 *
+	 * Input: the battle's session id and the watcher's connection
+	 * Output: the Watcher, or null if there is no such battle
+	 */
+
+	public Watcher watch(String sessionID, Comms comms) throws IOException {
+
+		Feed feed = feeds.get(sessionID);
+
+		if (feed == null || feed.closed) {
+			return null;
+		}
+
+		Watcher w = new Watcher(comms, feed.head, Thread.currentThread());
+		comms.setBlocking(false);
+		feed.watchers.add(w);
+
+		if (feeds.get(sessionID) != feed) { // the battle ended and its feed was let go
+			feed.watchers.remove(w);
+			comms.setBlocking(true);
+			return null;
+		}
+		wake();
+		return w;
+	}
+
+
+	/*
+	 * run is the sender thread.  Each pass gives every watcher as much as its socket
+	 * will take without blocking.  If a watcher is behind but nothing could be sent
+	 * the thread sleeps briefly; if no one is behind it sleeps until a turn is
+	 * published, a watcher joins or a battle ends.
+	 */
+
+	public void run() {
+
+		while (true) {
+
+			boolean progress = false;
+			boolean behind = false;
+
+			for (Map.Entry<String, Feed> entry : feeds.entrySet()) {
+				Feed feed = entry.getValue();
+				boolean closed = feed.closed;
+
+				for (Watcher w : feed.watchers) {
+					progress |= send(feed, w);
+
+					if (w.done) {
+						feed.watchers.remove(w);
+					} else if (closed && w.cursor == feed.head) {
+						w.finish();
+						feed.watchers.remove(w);
+					} else {
+						behind |= w.cursor < feed.head;
+					}
+				}
+
+				if (closed && feed.watchers.isEmpty()) {
+					feeds.remove(entry.getKey());
+				}
+			}
+
+			if (!behind) {
+				LockSupport.park(this);
+			} else if (!progress) {
+				LockSupport.parkNanos(this, 10000000L);
+			}
+		}
+	}
+
+
+	/*
+	 * send writes the frames one watcher is behind on, until its socket is full.
+	 *
+	 * Input: the feed and the watcher
+	 * Output: boolean, true if anything was sent
+	 */
+
+	private boolean send(Feed feed, Watcher w) {
+
+		boolean progress = false;
+
+		try {
+			while (w.cursor < feed.head) {
+				ByteBuffer frame = feed.frames[(int) (w.cursor % feed.frames.length)];
+
+				// Checked after the frame is taken: if head has come round to this
+				// slot the battle may have written a newer turn over it
+				if (feed.head - w.cursor >= feed.frames.length) {
+					drop(w, "behind");
+					return progress;
+				}
+
+				frame = frame.duplicate();
+				frame.position(w.offset);
+
+				int n = w.comms.send(frame);
+				if (n == 0) {
+					return progress;
+				}
+
+				progress = true;
+				if (frame.hasRemaining()) {
+					w.offset = frame.position();
+					return progress;
+				}
+				w.cursor++;
+				w.offset = 0;
+			}
+		} catch (IOException e) {
+			drop(w, "closed");
+		}
+		return progress;
+	}
+
+	private void drop(Watcher w, String why) {
+		w.dropped = true;
+		w.finish();
+		synchronized (this) {
+			dropped++;
+		}
+		EventLog.getEventLog().log(Values.Log.session, Values.Level.info,
+				"spectator dropped", null, why);
+	}
+
+
+	// Getter - Setter ----------------------------------------------------------------
+
+	public int watching() {
+		int n = 0;
+		for (Feed feed : feeds.values()) {
+			n += feed.watchers.size();
+		}
+		return n;
+	}
+
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+
+	/*
+	 * Feed is the ring of encoded turns for one battle.  Only the battle thread
+	 * publishes, so head needs no more than to be volatile; the frame is stored
+	 * before head moves past it.  The ring has one slot more than the lag allowed,
+	 * the slot the next turn is written to.  The battle asks isWatched before
+	 * building a frame.
+	 */
+
+	public static class Feed {
+
+		private final Spectators 		owner;
+		private final ByteBuffer[] 		frames;
+		private final List<Watcher> 	watchers = new CopyOnWriteArrayList<Watcher>();
+		private volatile long 			head = 0;
+		private volatile boolean 		closed = false;
+
+		private Feed(Spectators owner, int capacity) {
+			this.owner = owner;
+			frames = new ByteBuffer[capacity + 1];
+		}
+
+		public boolean isWatched() {
+			return !watchers.isEmpty();
+		}
+
+		public void publish(String frame) {
+			frames[(int) (head % frames.length)] =
+					ByteBuffer.wrap(frame.getBytes(StandardCharsets.US_ASCII)).asReadOnlyBuffer();
+			head++;
+			owner.wake();
+		}
+	}
+
+
+	/*
+	 * Watcher is one spectator's place in a feed.  Only the sender thread moves the
+	 * cursor; the Service thread of the spectator parks until it is woken by finish.
+	 */
+
+	public static class Watcher {
+
+		private final Comms 		comms;
+		private final Thread 		waiter;
+		private long 				cursor;
+		private int 				offset = 0;
+		private volatile boolean 	done = false;
+		private volatile boolean 	dropped = false;
+
+		private Watcher(Comms comms, long cursor, Thread waiter) {
+			this.comms = comms;
+			this.cursor = cursor;
+			this.waiter = waiter;
+		}
+
+		private void finish() {
+			done = true;
+			LockSupport.unpark(waiter);
+		}
+
+		public boolean isDone() {
+			return done;
+		}
+
+		public boolean isDropped() {
+			return dropped;
+		}
+	}
+}
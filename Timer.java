@@ -29,4 +29,8 @@ public class Timer {
 	public boolean waitedLongEnough() {
 		return System.currentTimeMillis() - lastTime > timeOut;
 	}
+
+	public boolean waitedLongerThan(int t) {
+		return System.currentTimeMillis() - lastTime > t * 1000L;
+	}
 }
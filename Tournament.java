@@ -0,0 +1,385 @@
+/*
+ * Tournament runs a single elimination event over the normal battle engine.  Registration is
+ * opened from the console, idle players enter with the enter command and their robot parts
+ * (the same message as a quick match), and the console then starts the event.  There is one
+ * tournament at a time.
+ *
+ * The bracket is kept as a binary tree in an array, the final at node 1 and the first round
+ * at the leaves.  Entrants are seeded by rating so that the top seeds meet as late as
+ * possible, and when the field is not a power of two the top seeds get byes.  The winner of
+ * each battle is written into the parent node, and as soon as both players of a node are
+ * known its match is ready.  Nothing waits for the rest of the round, so moving on from a
+ * result is a couple of array writes.  A draw, or a battle which could not be decided, goes
+ * to the higher seed.
+ *
+ * Ready matches are started by the tournament's own thread, only while Admission has room.
+ * When many are ready at once, as for the first round, they go in batches of tournamentBatch
+ * with tournamentStagger milliseconds between batches, so hundreds of battles do not hit the
+ * Database and the cpu all at once.
+ * Players still in the event wait between battles; losers go back to idle.
+ */
+
+package servers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class Tournament implements Runnable {
+
+	private static Tournament 		tournament;
+	private GameManager 			gameManager;
+	private Lists 					lists;
+	private Admission 				admission;
+	private List<Client> 			entrants;
+	private Map<Client, Integer> 	seeds;
+	private Client[] 				bracket;
+	private boolean[] 				decided;
+	private Map<Client, Integer> 	playing;
+	private BlockingQueue<Integer> 	ready;
+	private int 					size;
+	private boolean 				open = true;
+	private volatile boolean 		isStopped = false;
+	private volatile Client 		champion;
+
+
+	/*
+	 * open starts taking entries for a new tournament, unless one is already running.
+	 * getTournament returns the current tournament, or null if there is none.
+	 */
+
+	public static synchronized Tournament open(GameManager gm) {
+		if (tournament == null || tournament.isOver()) {
+			tournament = new Tournament(gm);
+		}
+		return tournament;
+	}
+
+	public static synchronized Tournament getTournament() {
+		return tournament;
+	}
+
+	private Tournament(GameManager gm) {
+		gameManager = gm;
+		lists = Lists.getLists();
+		admission = Admission.getAdmission();
+		entrants = new ArrayList<Client>();
+		seeds = new IdentityHashMap<Client, Integer>();
+		playing = new IdentityHashMap<Client, Integer>();
+		ready = new LinkedBlockingQueue<Integer>();
+	}
+
+
+	/*
+	 * register adds a player who has already picked their robot.
+	 *
+	 * Input: the client
+	 * Output: boolean, false if registration is closed
+	 */
+
+	public synchronized boolean register(Client c) {
+
+		if (!open || entrants.contains(c)) {
+			return false;
+		}
+
+		entrants.add(c);
+		c.setTournament(this);
+		return true;
+	}
+
+
+	/*
+	 * start closes registration, seeds the bracket and starts the scheduling thread.
+	 *
+	 * Input: none
+	 * Output: boolean, false if it had already started or has fewer than 2 players
+	 */
+
+	public synchronized boolean start() {
+
+		if (!open || entrants.size() < 2) {
+			return false;
+		}
+		open = false;
+
+		Collections.sort(entrants, new Comparator<Client>() {
+			public int compare(Client a, Client b) {
+				return b.getRating() - a.getRating();
+			}
+		});
+
+		size = Integer.highestOneBit(entrants.size() - 1) << 1;
+		bracket = new Client[2 * size];
+		decided = new boolean[2 * size];
+
+		int[] order = seedOrder(size);
+		for (int i = 0; i < size; i++) {
+			int seed = order[i];
+			if (seed <= entrants.size()) {
+				Client c = entrants.get(seed - 1);
+				bracket[size + i] = c;
+				seeds.put(c, seed);
+			}
+			decided[size + i] = true;
+		}
+
+		// Fill the tree from the bottom so byes carry straight up
+		for (int node = size - 1; node >= 1; node--) {
+			if (decided[2 * node] && decided[2 * node + 1]) {
+				settle(node);
+			}
+		}
+		if (decided[1]) {
+			finish(bracket[1]);
+		}
+
+		EventLog.getEventLog().log(Values.Log.match, Values.Level.info,
+				"tournament start", null, entrants.size(), size);
+
+		Thread t = new Thread(this, "Tournament");
+		t.start();
+		return true;
+	}
+
+
+	/*
+	 * run starts the matches as they become ready, a batch at a time.
+	 */
+
+	public void run() {
+
+		int burst = 0;
+
+		while (!isStopped && !isOver()) {
+			try {
+				if (lists.isDraining()) {
+					stop();
+					break;
+				}
+
+				Integer node = ready.poll(1L, TimeUnit.SECONDS);
+
+				if (node == null) {
+					continue;
+				}
+
+				while (admission.battleSlots() == 0 && !isStopped) {
+					Thread.sleep(Config.get().tournamentStagger);
+				}
+
+				begin(node);
+
+				// Only a backlog is staggered; matches readied one at a time by
+				// results coming in start straight away
+				if (ready.isEmpty()) {
+					burst = 0;
+				} else if (++burst % Config.get().tournamentBatch == 0) {
+					Thread.sleep(Config.get().tournamentStagger);
+				}
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+
+
+	/*
+	 * ended is called by a Battle of this tournament when it is over.  Both players
+	 * are still held by the tournament at this point.  The winner moves up the bracket
+	 * and the loser is let go.
+	 *
+	 * Input: the battle, and its winner or null if it was not decided
+	 * Output: none
+	 */
+
+	public synchronized void ended(Battle b, Client winner) {
+
+		Integer node = playing.remove(b.getPlayer1());
+		playing.remove(b.getPlayer2());
+
+		if (node == null) {
+			return;
+		}
+
+		Client left = bracket[2 * node];
+		Client right = bracket[2 * node + 1];
+
+		if (isStopped) {
+			release(left);
+			release(right);
+			return;
+		}
+
+		if (winner != left && winner != right) {
+			winner = (seeds.get(left) < seeds.get(right)) ? left : right;
+		}
+
+		release(winner == left ? right : left);
+		bracket[node] = winner;
+		decided[node] = true;
+		lists.removeIdle(winner);
+
+		EventLog.getEventLog().log(Values.Log.match, Values.Level.info,
+				"tournament result", winner.getUserID(), node, seeds.get(winner));
+
+		advance(node);
+	}
+
+
+	// Utilities ------------------------------------------------------------------
+
+	/*
+	 * settle is called once both halves below a node are decided.  If both players
+	 * are there the match is ready to play.  Otherwise the node is decided without
+	 * one: a bye, or a player whose opponent has signed out.
+	 *
+	 * Input: the node
+	 * Output: boolean, true if the node was decided
+	 */
+
+	private boolean settle(int node) {
+
+		Client left = present(bracket[2 * node]);
+		Client right = present(bracket[2 * node + 1]);
+
+		if (left != null && right != null) {
+			ready.add(node);
+			return false;
+		}
+
+		bracket[node] = (left != null) ? left : right;
+		decided[node] = true;
+		return true;
+	}
+
+	private void advance(int node) {
+
+		while (node > 1) {
+			int parent = node / 2;
+
+			if (!decided[node ^ 1] || !settle(parent)) {
+				return;
+			}
+			node = parent;
+		}
+		finish(bracket[1]);
+	}
+
+	private void begin(int node) {
+
+		Client c1;
+		Client c2;
+
+		synchronized (this) {
+			c1 = present(bracket[2 * node]);
+			c2 = present(bracket[2 * node + 1]);
+
+			if (c1 == null || c2 == null) { // a walkover
+				bracket[node] = (c1 != null) ? c1 : c2;
+				decided[node] = true;
+				advance(node);
+				return;
+			}
+
+			playing.put(c1, node);
+			playing.put(c2, node);
+		}
+
+		// Winners go on with the robot they entered with, repaired
+		c1.getRobot().reset();
+		c2.getRobot().reset();
+
+		gameManager.makeBattle(c1, c2, this);
+	}
+
+	private void finish(Client c) {
+
+		champion = c;
+		release(c);
+
+		EventLog.getEventLog().log(Values.Log.match, Values.Level.info,
+				"tournament won", (c != null) ? c.getUserID() : null, null);
+	}
+
+	private void release(Client c) {
+
+		if (c == null || c.getService() == null) {
+			return;
+		}
+		c.setTournament(null);
+		c.getService().interrupt(false);
+		lists.addIdle(c);
+	}
+
+	/*
+	 * A player counts as present while they are still signed in.
+	 */
+
+	private Client present(Client c) {
+		return (c != null && c.getService() != null) ? c : null;
+	}
+
+	/*
+	 * seedOrder lays out seeds 1..n so that seed 1 meets seed 2 only in the final, seed
+	 * 1 meets 4 and 2 meets 3 in the semi-finals, and so on.
+	 */
+
+	private static int[] seedOrder(int n) {
+
+		int[] order = { 1 };
+
+		while (order.length < n) {
+			int[] next = new int[order.length * 2];
+			int sum = next.length + 1;
+
+			for (int i = 0; i < order.length; i++) {
+				next[2 * i] = order[i];
+				next[2 * i + 1] = sum - order[i];
+			}
+			order = next;
+		}
+		return order;
+	}
+
+
+	// Getter - Setter ----------------------------------------------------------------
+
+	public synchronized void stop() {
+
+		isStopped = true;
+		open = false;
+
+		for (Client c : entrants) {
+			if (c.getTournament() == this && !c.getCurrentStatus().equals(Values.States.battling)) {
+				release(c);
+			}
+		}
+	}
+
+	public boolean isOver() {
+		return isStopped || champion != null;
+	}
+
+	public synchronized boolean isOpen() {
+		return open;
+	}
+
+	public synchronized String toString() {
+
+		if (open) {
+			return "Registering: " + entrants.size() + " players";
+		}
+		if (champion != null) {
+			return "Won by " + champion.getUserID();
+		}
+		return "Players: " + entrants.size() + " Playing: " + playing.size() / 2
+				+ " Ready: " + ready.size() + (isStopped ? " (stopped)" : "");
+	}
+}
@@ -1,13 +1,15 @@
 /*
  * Values is a class made for key value stores.  This allows for easy adjustment
- * of various properties used for tuning the application.
+ * of various properties used for tuning the application.  The constants here are
+ * the defaults; the values in use are read through Config, which lets them be
+ * overridden from a file and changed while the server is running.
  */
 
 package servers;
 
 public class Values {
 	public static enum States {
-		waiting, waitingQuick, shopping, idle, battling;
+		waiting, waitingQuick, shopping, idle, battling, watching;
 	}
 
 	public static enum Result {
@@ -18,12 +20,34 @@ public class Values {
 		attack, defend, heal, forfeit, charge;
 	}
 
+	public static enum Command {
+		list, match, quick, store, signout, watch, enter, leaders, rank, buy, ping;
+	}
+
+	public static enum Anomaly {
+		malformed, unowned, cooldown, timing;
+	}
+
 	public static enum CA {
-		read, write, update;
+		read, write, update, exchange;
+	}
+
+	public static enum Overflow {
+		drop, disconnect;
+	}
+
+	public static enum Log {
+		battle, session, match, server;
+	}
+
+	public static enum Level {
+		off, error, info, debug;
 	}
 
 	public static boolean debug = true;
+	public static final int port = 6789;
 	public static final int defaultTimeOut = 60;
+	public static final int handshakeTimeOut = 5;
 	public static final int winPoints = 12;
 	public static final int drawPoints = 5;
 	public static final int lossPoints = 1;
@@ -31,6 +55,63 @@ public class Values {
 	public static final int drawScrap = 10;
 	public static final int lossScrap = 5;
 	public static final int baseHealth = 50;
+	public static final int robotPool = 256;
+	public static final int refereeQueue = 4096;
+	public static final int partPrice = 50;
+	public static final int purchaseHistory = 20;
+	public static final int anomalyLimit = 5;
+	public static final int anomalyWindow = 60;
+	public static final int minActionMillis = 20;
 	public static final int waitTime = 15;
+	public static final Action timeoutAction = Action.defend;
 	public static final int maxTurns = 19;
+	public static final int idleTimeOut = 180;
+	public static final int heartbeatTimeOut = 30;
+	public static final int reapInterval = 5;
+	public static final int lobbyTimeOut = 60;
+	public static final int queueTimeOut = 15;
+	public static final int matchInterval = 15;
+	public static final int loginBatch = 10;
+	public static final String configFile = "server.properties";
+	public static final int resumeGrace = 30;
+	public static final int replyGrace = 2000;
+	public static final int outboundQueue = 16;
+	public static final Overflow outboundPolicy = Overflow.disconnect;
+	public static final int slabCount = 4096;
+	public static final int slabSize = 512;
+	public static final int maxFields = 16;
+	public static final int maxSessions = 1000;
+	public static final int maxBattles = 100;
+	public static final int maxDatabaseLatency = 200;
+	public static final int maxHeapPercent = 90;
+	public static final int databaseHalfLife = 5;
+	public static final int acceptQueue = 1028;
+	public static final int retryAfter = 5;
+	public static final int maxRetryAfter = 60;
+	public static final int logCapacity = 8192;
+	public static final String logFile = "events.jsonl";
+	public static final String clusterGateway = "";
+	public static final String nodeHost = "127.0.0.1";
+	public static final int gatewayPort = 6789;
+	public static final int controlPort = 6790;
+	public static final int migrateCooldown = 10;
+	public static final int gatewayWorkers = 4;
+	public static final int gatewayHandshake = 2000;
+	public static final int gatewayAffinity = 100000;
+	public static final int spectatorLag = 8;
+	public static final int battleStore = 0;
+	public static final int handshakeWorkers = 4;
+	public static final int tournamentBatch = 20;
+	public static final int tournamentStagger = 250;
+	public static final String leaderboardFile = "leaderboard.csv";
+	public static final int leaderboardCheckpoint = 60;
+	public static final int leaderboardSize = 10;
+	public static final int listSize = 10;
+	public static final int initialRating = 1500;
+	public static final int provisionalGames = 30;
+	public static final int provisionalK = 40;
+	public static final int ratingK = 20;
+	public static final int masterRating = 2400;
+	public static final int masterK = 10;
+	public static final int ratingFlush = 10;
 }